@@ -31,8 +31,11 @@ import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.LinearAxis;
 import net.imagej.display.ColorTables;
 import net.imagej.ops.OpService;
+import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
 import net.imglib2.img.Img;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
@@ -53,13 +56,15 @@ import org.scijava.table.Tables;
 import org.scijava.ui.UIService;
 import org.scijava.ui.swing.viewer.plot.jfreechart.XYPlotConverter;
 import org.scijava.util.ColorRGB;
+import utils.Correlogram;
 import utils.RadialProfiler;
 import utils.ErrorChecking;
+import utils.SharedExecutor;
+import utils.SignificantDigits;
+import utils.CrossCorrelationFunctions;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.MathContext;
 import java.util.*;
 
 import static java.util.stream.Collectors.toList;
@@ -115,6 +120,24 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
     @Parameter(label = "Show intermediate images? ", description = "Shows images of numerous steps throughout the algorithm. Uncheck to use less memory. More details at: imagej.net/plugins/colocalization-by-cross-correlation", required = false)
     protected boolean showIntermediates;
 
+    @Parameter(label = "Maximum correlation distance (0 for no limit): ", description = "Largest distance, in calibrated units, for which the cross-correlation is calculated. Limiting it reduces the padding, memory and time of the FFTs on large images.", required = false)
+    protected double maxCorrelationDistance;
+
+    @Parameter(label = "Distance binning: ", description = "Exact shells keeps every distinct distance of the correlogram. Fixed width and log-spaced bins group them, which reduces the number of distances by orders of magnitude on anisotropic 3D data.", choices = {RadialProfiler.EXACT_BINNING, RadialProfiler.FIXED_WIDTH_BINNING, RadialProfiler.LOG_BINNING}, required = false)
+    protected String distanceBinning = RadialProfiler.EXACT_BINNING;
+
+    @Parameter(label = "Bin width (calibrated units, relative growth for log-spaced): ", description = "Width of the fixed bins, or growth of each log-spaced bin over the previous one (e.g. 0.05 for 5%). Must be > 0 for fixed width and log-spaced bins, exact shells ignore it.", min = "0", required = false)
+    protected double binWidth;
+
+    @Parameter(label = "Maximum correlogram radius (0 for no limit): ", description = "Largest distance, in calibrated units, reported in the correlogram and used by the fit. Only the center of the correlation image is scanned.", required = false)
+    protected double maxProfileRadius;
+
+    @Parameter(label = "Out-of-core memory budget (MB, 0 keeps images in memory): ", description = "Stores the images on disk and computes the cross-correlation tile by tile, using about this much memory. Tiling requires a maximum correlation distance.", required = false)
+    protected long outOfCoreBudget;
+
+    @Parameter(label = "Number of threads (0 uses all cores): ", description = "Maximum number of threads used by the correlation, FFT and profiling steps of this run.", required = false)
+    protected int numThreads;
+
     @Parameter(label = "Output directory (leave blank for none):", description = "The directory to automatically save all generated output, including the intermediate images if the \"Show Intermediates\" box is checked", required = false, style="directory")
     protected File saveFolder;
 
@@ -132,6 +155,9 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
 
     protected Dataset [] intermediates;
 
+    //Converted inputs, implicit mask, contributions, intermediates and correlation images that can share the out-of-core cell cache
+    protected static final int DISK_CACHED_IMAGES = 11;
+
     protected String statusBase = "";
     protected int currentStatus = 0;
     protected int maxStatus = 0;
@@ -139,8 +165,9 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
     protected double [] scale;
     protected CalibratedAxis[] inputCalibratedAxes;
     protected AxisType[] inputAxisTypes;
-    //todo: Convert to DiskCachedImg
     protected Img <FloatType> convertedImg1, convertedImg2;
+    //Storage of the converted inputs, correlations and intermediates in out-of-core mode, null otherwise
+    protected DiskCachedCellImgFactory<FloatType> diskCachedFactory;
     protected RadialProfiler radialProfiler;
     protected SCIFIOConfig config;
 
@@ -151,6 +178,9 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
     protected long[] maxDims;
     protected int timeAxis;
     protected RandomAccessibleInterval [] intermediatesViewsPasser;
+    //Set when only the binned preview is run, its results are then the output of the command
+    protected boolean previewOnly;
+    protected boolean staticMask;
     //endregion
 
 //    protected void maskInit(){
@@ -162,6 +192,16 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
 //        maskDatasetItem.setChoices(choices);
 //    }
 
+    //Every stage of the analysis runs on one bounded thread pool, which is released when the command finishes
+    @Override
+    public void run(){
+        try (SharedExecutor executor = new SharedExecutor(numThreads)) {
+            executor.run(this::runAnalysis);
+        }
+    }
+
+    protected abstract void runAnalysis();
+
     protected void finish() {
         statusService.showStatus(maxStatus, maxStatus,statusBase + "CCC Finished!");
     }
@@ -188,16 +228,11 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
             inputCalibratedAxes[i] = dataset1.axis(i);
             inputAxisTypes[i] = dataset1.axis(i).type();
         }
-        if (showIntermediates) {
-            intermediates = new Dataset[intermediateNames.length];
-            for (int i = 0; i < intermediateNames.length; i++) {
-                intermediates[i] = datasetService.create(new FloatType(), dataset1.dimensionsAsLongArray(), intermediateNames[i], inputAxisTypes);
-                intermediates[i].setAxes(inputCalibratedAxes);
-            }
-        }
+        if(outOfCoreBudget > 0)
+            initializeDiskCache();
 
-        convertedImg1 = ops.convert().float32((Img) dataset1.getImgPlus());
-        convertedImg2 = ops.convert().float32((Img) dataset2.getImgPlus());
+        convertedImg1 = convertToFloat(dataset1);
+        convertedImg2 = convertToFloat(dataset2);
 
         //Zero all the data outside the image mask, to prevent it from contributing to the cross-correlation result.
         if(!maskAbsent) {
@@ -214,7 +249,9 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
             });
         }
         else{
-            maskDataset = dataset1.duplicateBlank();
+            //disk cached in out-of-core mode, like the other images of the run
+            maskDataset = createFloatDataset(dataset1.dimensionsAsLongArray(), "No mask");
+            maskDataset.setAxes(inputCalibratedAxes);
             LoopBuilder.setImages(maskDataset).multiThreaded().forEachPixel(SetOne::setOne);
         }
 
@@ -222,6 +259,7 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
         ErrorChecking.dimensionChecking(dataset1, dataset2);
         ErrorChecking.dimensionChecking(dataset1, maskDataset);
         ErrorChecking.multiChannelErrorCheck(dataset1,dataset2, maskDataset);
+        ErrorChecking.binningCheck(distanceBinning, binWidth);
         //endregion
 
         if(dataset1.getFrames() == 1){
@@ -246,18 +284,116 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
                 }
             }
             if(showIntermediates){
-                intermediatesViewsPasser = new RandomAccessibleInterval[intermediates.length];
+                intermediatesViewsPasser = new RandomAccessibleInterval[intermediateNames.length];
+            }
+            staticMask = maskAbsent || isMaskStatic();
+        }
+
+        runPreview();
+
+        //a preview-only run has no full-resolution correlation images
+        if (showIntermediates && !previewOnly) {
+            //The intermediate correlation images only cover the shifts up to the maximum correlation distance
+            long[] intermediateDims = dataset1.dimensionsAsLongArray();
+            for (int i = 0, j = 0; i < intermediateDims.length; i++) {
+                if(dataset1.getFrames() == 1 || i != timeAxis)
+                    intermediateDims[i] = CrossCorrelationFunctions.getCorrelationDimension(intermediateDims[i], scale[j++], maxCorrelationDistance);
+            }
+            intermediates = new Dataset[intermediateNames.length];
+            for (int i = 0; i < intermediateNames.length; i++) {
+                intermediates[i] = createFloatDataset(intermediateDims, intermediateNames[i]);
+                intermediates[i].setAxes(inputCalibratedAxes);
             }
         }
     }
 
+    //Quick estimate on downsampled data, which can narrow the maximum correlation distance before the full analysis
+    protected void runPreview(){
+    }
+
+    //Half of the budget bounds the cell caches of the disk-cached images, the other half the FFT buffers of one tile
+    protected void initializeDiskCache(){
+        int timeIndex = dataset1.dimensionIndex(Axes.TIME);
+        int spatialDims = dataset1.numDimensions() - (timeIndex >= 0 ? 1 : 0);
+        //Images without the time axis use the first cell dimensions, the time axis is usually the last one
+        int[] cellDimensions = new int[dataset1.numDimensions()];
+        long cellBytes = Float.BYTES;
+        for (int i = 0; i < cellDimensions.length; i++) {
+            cellDimensions[i] = i == timeIndex ? 1 : (spatialDims > 2 ? 64 : 256);
+            cellBytes *= cellDimensions[i];
+        }
+        long maxCachedCells = Math.max(1, (getOutOfCoreBudgetBytes() / 2) / (DISK_CACHED_IMAGES * cellBytes));
+        diskCachedFactory = new DiskCachedCellImgFactory<>(new FloatType(), DiskCachedCellImgOptions.options()
+                .cellDimensions(cellDimensions)
+                .cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED)
+                .maxCacheSize(maxCachedCells));
+    }
+
+    protected long getOutOfCoreBudgetBytes(){
+        return outOfCoreBudget * 1024 * 1024;
+    }
+
+    //Switches the correlation to tiles in out-of-core mode, which needs the shifts to be limited
+    protected void initializeOutOfCore(CrossCorrelationFunctions ccFunctions){
+        if(diskCachedFactory != null && !ccFunctions.setOutOfCore(getOutOfCoreBudgetBytes() / 2))
+            logService.warn("Out-of-core mode without a maximum correlation distance smaller than the image transforms the whole images through the disk cache, which is slow. Set a maximum correlation distance to compute the correlation tile by tile.");
+    }
+
+    protected Img<FloatType> convertToFloat(Dataset input){
+        if(diskCachedFactory == null)
+            return ops.convert().float32((Img) input.getImgPlus());
+        Img<FloatType> converted = diskCachedFactory.create(input);
+        LoopBuilder.setImages(input, converted).multiThreaded().forEachPixel((i, o) -> o.setReal(i.getRealDouble()));
+        return converted;
+    }
+
+    protected Img<FloatType> createFloatImg(long[] dimensions){
+        if(diskCachedFactory == null)
+            return ops.create().img(new FinalDimensions(dimensions), new FloatType());
+        return diskCachedFactory.create(dimensions);
+    }
+
+    //The axes are set by the caller
+    protected Dataset createFloatDataset(long[] dimensions, String name){
+        if(diskCachedFactory == null)
+            return datasetService.create(new FloatType(), dimensions, name, inputAxisTypes);
+        Dataset dataset = datasetService.create(diskCachedFactory.create(dimensions));
+        dataset.setName(name);
+        return dataset;
+    }
+
+    //Checks if every frame of the mask covers the same region as the first frame
+    protected boolean isMaskStatic(){
+        RandomAccessibleInterval<RealType<?>> firstFrame = Views.hyperSlice(maskDataset, timeAxis, 0);
+        for (long i = 1; i < maskDataset.dimension(timeAxis); i++) {
+            final boolean[] identical = {true};
+            LoopBuilder.setImages(firstFrame, Views.hyperSlice(maskDataset, timeAxis, i)).multiThreaded().forEachPixel((a, b) -> {
+                if ((a.getRealDouble() == 0.0) != (b.getRealDouble() == 0.0)) {
+                    identical[0] = false;
+                }
+            });
+            if(!identical[0])
+                return false;
+        }
+        return true;
+    }
+
     protected String getUnitType(){ return dataset1.axis(Axes.X).isPresent() ? dataset1.axis(Axes.X).get().unit(): "Unlabeled distance unit"; }
 
+    //Applies the distance binning and radius of this run to a new profiler. A radius too small to fit the Gaussians is raised
+    protected RadialProfiler configureProfiler(RadialProfiler profiler){
+        profiler.setBinning(distanceBinning, binWidth);
+        double minRadius = profiler.getMinimumFitRadius();
+        if(maxProfileRadius > 0 && maxProfileRadius < minRadius) {
+            logService.warn("A maximum correlogram radius of " + maxProfileRadius + " " + getUnitType() + " leaves too few distances to fit " + profiler.correlationData.curveCount + " Gaussian(s), it is raised to " + minRadius + " " + getUnitType() + ".");
+            maxProfileRadius = minRadius;
+        }
+        profiler.setMaxRadius(maxProfileRadius);
+        return profiler;
+    }
+
     protected double getSigDigits(double input){
-        //crashes on infinite or NaN according to BigDecimal
-        BigDecimal bd = new BigDecimal(input);
-        bd = bd.round(new MathContext(significantDigits));
-        return bd.doubleValue();
+        return SignificantDigits.round(input, significantDigits);
     }
 
     protected void setActiveFrame(long frame){
@@ -271,8 +407,11 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
         return Views.dropSingletonDimensions(Views.interval(in, minDims, maxDims));
     }
 
+    //The intermediate images can be smaller than the input, so only the time axis is taken from the active frame
     protected RandomAccessibleInterval<RealType<?>> getActiveFrame(Dataset in){
-        return Views.dropSingletonDimensions(Views.interval(in, minDims, maxDims));
+        long[] frameMax = in.maxAsLongArray();
+        frameMax[timeAxis] = maxDims[timeAxis];
+        return Views.dropSingletonDimensions(Views.interval(in, minDims, frameMax));
     }
 
     protected void generateCorrelogram(){
@@ -289,7 +428,7 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
 
         if(radialProfiler.correlationData.hasGaussians()) {
             XYSeries gaussData = plot.addXYSeries();
-            gaussData.setValues(new ArrayList<>(radialProfiler.correlationData.sCorrMap.keySet()), radialProfiler.correlationData.sCorrMap.keySet().stream().map(radialProfiler.correlationData.gaussians::value).collect(toList()));
+            gaussData.setValues(radialProfiler.correlationData.sCorrelogram.distanceList(), radialProfiler.correlationData.sCorrelogram.distanceList().stream().map(radialProfiler.correlationData.gaussians::value).collect(toList()));
             gaussData.setStyle(gaussStyle);
             gaussData.setLabel("Gaussian Fit");
 
@@ -300,16 +439,16 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
             plot.xAxis().setManualRange(0, maxX);
         }
 
-        if(radialProfiler.correlationData.sCorrMap != null) {
+        if(radialProfiler.correlationData.sCorrelogram != null) {
             XYSeries sCorrPlotData = plot.addXYSeries();
-            sCorrPlotData.setValues(new ArrayList<>(radialProfiler.correlationData.sCorrMap.keySet()), new ArrayList<>(radialProfiler.correlationData.sCorrMap.values()));
+            sCorrPlotData.setValues(radialProfiler.correlationData.sCorrelogram.distanceList(), radialProfiler.correlationData.sCorrelogram.valueList());
             sCorrPlotData.setStyle(sCorrStyle);
             sCorrPlotData.setLabel("Subtracted CC");
         }
 
-        if(radialProfiler.correlationData.oCorrMap != null) {
+        if(radialProfiler.correlationData.oCorrelogram != null) {
             XYSeries oCorrPlotData = plot.addXYSeries();
-            oCorrPlotData.setValues(new ArrayList<>(radialProfiler.correlationData.oCorrMap.keySet()), new ArrayList<>(radialProfiler.correlationData.oCorrMap.values()));
+            oCorrPlotData.setValues(radialProfiler.correlationData.oCorrelogram.distanceList(), radialProfiler.correlationData.oCorrelogram.valueList());
             oCorrPlotData.setStyle(oCorrStyle);
             oCorrPlotData.setLabel("Original CC");
         }
@@ -318,78 +457,77 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
     protected void generateFullCorrelationTable(){
         List<HashMap<String,Double>> correlationTableList = new ArrayList<>();
         //RadialProfiler finalRadialProfile = radialProfiler;
-        SortedMap<Double, Double> keyMap = radialProfiler.correlationData.oCorrMap != null ? radialProfiler.correlationData.oCorrMap : radialProfiler.correlationData.sCorrMap;
+        Correlogram keys = radialProfiler.correlationData.oCorrelogram != null ? radialProfiler.correlationData.oCorrelogram : radialProfiler.correlationData.sCorrelogram;
 
-        keyMap.keySet().stream().forEachOrdered((d) -> {
+        for (int k = 0; k < keys.size(); k++) {
+            double d = keys.getDistance(k);
             LinkedHashMap<String, Double> row = new LinkedHashMap<String, Double>();
             row.put("Distance (" + getUnitType() +")", (getSigDigits(d)));
-            if(radialProfiler.correlationData.oCorrMap != null) row.put("Original CC", getSigDigits(radialProfiler.correlationData.oCorrMap.get(d)));
-            if(radialProfiler.correlationData.sCorrMap != null) row.put("Subtracted CC", getSigDigits(radialProfiler.correlationData.sCorrMap.get(d)));
+            if(radialProfiler.correlationData.oCorrelogram != null) row.put("Original CC", getSigDigits(radialProfiler.correlationData.oCorrelogram.getValue(k)));
+            if(radialProfiler.correlationData.sCorrelogram != null) row.put("Subtracted CC", getSigDigits(radialProfiler.correlationData.sCorrelogram.getValue(k)));
             if(radialProfiler.correlationData.gaussians != null) row.put("Gaussian fit", getSigDigits(radialProfiler.correlationData.gaussians.value(d)));
             correlationTableList.add(row);
-        });
+        }
         correlationTable = Tables.wrap(correlationTableList, null);
     }
 
     protected void addDataToHeatmaps(long frame){
-        SortedMap<Double, Double> keyMap = radialProfiler.correlationData.oCorrMap != null ? radialProfiler.correlationData.oCorrMap : radialProfiler.correlationData.sCorrMap;
+        Correlogram keys = radialProfiler.correlationData.oCorrelogram != null ? radialProfiler.correlationData.oCorrelogram : radialProfiler.correlationData.sCorrelogram;
         if(timeCorrelationHeatMap == null) {
             int channelCount = 0;
-            if(radialProfiler.correlationData.oCorrMap != null) ++channelCount;
-            if(radialProfiler.correlationData.sCorrMap != null) ++channelCount;
+            if(radialProfiler.correlationData.oCorrelogram != null) ++channelCount;
+            if(radialProfiler.correlationData.sCorrelogram != null) ++channelCount;
             if(radialProfiler.correlationData.gaussians != null) channelCount += radialProfiler.correlationData.curveCount;
 
-            timeCorrelationHeatMap = datasetService.create(new FloatType(), new long[]{dataset1.dimension(Axes.TIME), keyMap.keySet().size(), channelCount}, "Correlation over time of " + dataset1.getName() + " and " + dataset2.getName(), new AxisType[]{Axes.X, Axes.Y, Axes.CHANNEL});
+            timeCorrelationHeatMap = datasetService.create(new FloatType(), new long[]{dataset1.dimension(Axes.TIME), keys.size(), channelCount}, "Correlation over time of " + dataset1.getName() + " and " + dataset2.getName(), new AxisType[]{Axes.X, Axes.Y, Axes.CHANNEL});
 
             ((LinearAxis) timeCorrelationHeatMap.axis(0)).setScale(calibratedTime.isPresent() && calibratedTime.get().calibratedValue(1) != 0 ? calibratedTime.get().calibratedValue(1) : 1);
             timeCorrelationHeatMap.axis(0).setUnit((dataset1.axis(Axes.TIME).isPresent() ? dataset1.axis(Axes.TIME).get().unit() : "frame"));
 
-            ((LinearAxis) timeCorrelationHeatMap.axis(1)).setScale((keyMap.lastKey()- keyMap.firstKey())/ keyMap.keySet().size());
-            ((LinearAxis) timeCorrelationHeatMap.axis(1)).setOrigin(keyMap.firstKey());
+            ((LinearAxis) timeCorrelationHeatMap.axis(1)).setScale((keys.lastDistance()- keys.firstDistance())/ keys.size());
+            ((LinearAxis) timeCorrelationHeatMap.axis(1)).setOrigin(keys.firstDistance());
             timeCorrelationHeatMap.axis(1).setUnit(dataset1.axis(Axes.X).get().unit());
 
             timeCorrelationHeatMap.axis(2).setType(Axes.CHANNEL);
             timeCorrelationHeatMap.initializeColorTables(channelCount);
 
-            if(radialProfiler.correlationData.oCorrMap != null){
+            if(radialProfiler.correlationData.oCorrelogram != null){
                 timeCorrelationHeatMap.setColorTable(ColorTables.BLUE,0);
             }
 
-            if(radialProfiler.correlationData.oCorrMap == null) {
+            if(radialProfiler.correlationData.oCorrelogram == null) {
                 timeCorrelationHeatMap.setColorTable(ColorTables.GREEN,0);
                 for (int i = 1; i < channelCount; i++) {
                     timeCorrelationHeatMap.setColorTable(ColorTables.MAGENTA,i);
                 }
             }
-            if(radialProfiler.correlationData.oCorrMap != null && radialProfiler.correlationData.sCorrMap != null) {
+            if(radialProfiler.correlationData.oCorrelogram != null && radialProfiler.correlationData.sCorrelogram != null) {
                 timeCorrelationHeatMap.setColorTable(ColorTables.GREEN, 1);
                 for (int i = 2; i < channelCount; i++) {
                     timeCorrelationHeatMap.setColorTable(ColorTables.MAGENTA, i);
                 }
             }
             //EnumeratedAxis seems to be broken and doesn't show the proper values in ImageJ
-            //timeCorrelationHeatMap.setAxis(new EnumeratedAxis(Axes.Y, getUnitType(), radialProfile.oCorrMap.keySet().stream().mapToDouble(Double::doubleValue).toArray()), 1);
-            //uiService.showDialog("First key: " + radialProfile.oCorrMap.firstKey() + "," + timeCorrelationHeatMap.axis(1).rawValue(radialProfile.oCorrMap.firstKey()));
+            //timeCorrelationHeatMap.setAxis(new EnumeratedAxis(Axes.Y, getUnitType(), radialProfile.oCorrelogram.getDistances()), 1);
+            //uiService.showDialog("First key: " + radialProfile.oCorrelogram.firstDistance() + "," + timeCorrelationHeatMap.axis(1).rawValue(radialProfile.oCorrelogram.firstDistance()));
 
             correlationAccessor = timeCorrelationHeatMap.randomAccess();
         }
 
-        double[] keySet = keyMap.keySet().stream().mapToDouble(Double::doubleValue).toArray();
-
-        for (int k = 0; k < keySet.length; k++) {
+        for (int k = 0; k < keys.size(); k++) {
             int currentChannel = 0;
-            if(radialProfiler.correlationData.oCorrMap != null){
+            if(radialProfiler.correlationData.oCorrelogram != null){
                 correlationAccessor.setPosition(new long[]{frame,k,currentChannel++});
-                correlationAccessor.get().setReal(radialProfiler.correlationData.oCorrMap.get(keySet[k]));
+                correlationAccessor.get().setReal(radialProfiler.correlationData.oCorrelogram.getValue(k));
             }
-            if(radialProfiler.correlationData.sCorrMap != null){
+            if(radialProfiler.correlationData.sCorrelogram != null){
                 correlationAccessor.setPosition(new long[]{frame,k,currentChannel++});
-                correlationAccessor.get().setReal(radialProfiler.correlationData.sCorrMap.get(keySet[k]));
+                correlationAccessor.get().setReal(radialProfiler.correlationData.sCorrelogram.getValue(k));
             }
             if(radialProfiler.correlationData.gaussians != null){
                 for (int i = 0; i < radialProfiler.correlationData.gaussians.getCount(); i++) {
                     correlationAccessor.setPosition(new long[]{frame, k, currentChannel++});
-                    correlationAccessor.get().setReal(radialProfiler.correlationData.gaussians.getGaussian(i).value(keySet[k]));
+                    correlationAccessor.get().setReal(radialProfiler.correlationData.gaussians.getGaussian(i).value(keys.getDistance(k)));
                 }
             }
         }
@@ -418,7 +556,8 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
             logService.error("Output directory does not exist or does not have write permissions");
             return;
         }
-        if(dataset1.getFrames() ==1) {
+        //the preview only covers the first frame, so it is saved like a single frame
+        if(dataset1.getFrames() ==1 || previewOnly) {
             try {
                 File plotout = new File(saveFolder.getAbsolutePath() + File.separator + plot.getTitle() + ".png");
                 XYPlotConverter converter = new XYPlotConverter();
@@ -432,7 +571,7 @@ public abstract class Abstract_CCC_base extends DynamicCommand {
         else{
             saveDatasetsToFolder(timeCorrelationHeatMap);
         }
-        if (showIntermediates) {
+        if (showIntermediates && !previewOnly) {
             saveDatasetsToFolder(intermediates);
         }
     }
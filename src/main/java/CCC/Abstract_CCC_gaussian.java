@@ -28,12 +28,17 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 import org.apache.commons.io.FileUtils;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.table.Table;
 import org.scijava.table.Tables;
+import utils.Binning;
+import utils.CorrelationData;
+import utils.Correlogram;
 import utils.CrossCorrelationFunctions;
+import utils.RadialProfiler;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,23 +53,48 @@ import java.util.*;
 
 public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends FloatType> extends Abstract_CCC_base {
 
-    @Parameter(label = "Number of Gaussians to fit:", description = "Values > 1 fit a multi-term sum of Gaussians curve to the data", required=false)
+    //Choices for the number of Gaussians
+    protected static final String FIXED_COUNT = "Fixed";
+    protected static final String AIC_COUNT = "Automatic (AIC)";
+    protected static final String BIC_COUNT = "Automatic (BIC)";
+
+    @Parameter(label = "Number of Gaussians to fit:", description = "Values > 1 fit a multi-term sum of Gaussians curve to the data. With automatic selection, this is the largest number tried.", required=false)
     protected int numGaussians2Fit;
 
+    @Parameter(label = "Number of Gaussians selection:", description = "Automatic fits 1 up to the number of Gaussians above to the same correlogram at the same time, and keeps the number with the lowest information criterion. For time-lapse data, the number chosen for the first frame is used for every frame.", choices = {FIXED_COUNT, AIC_COUNT, BIC_COUNT}, required = false)
+    protected String gaussianCountSelection = FIXED_COUNT;
+
+    @Parameter(label = "Gaussian fit model:", description = "Mirrored around the peak mirrors the data beyond the peak to negative distances. Truncated at zero fits the zero-bounded correlogram directly with Gaussians renormalized by their mass above zero.", choices = {CorrelationData.MIRRORED_FIT, CorrelationData.TRUNCATED_FIT}, required = false)
+    protected String fitModel = CorrelationData.MIRRORED_FIT;
+
+    @Parameter(label = "Weight fit by voxel counts?", description = "Merges close distances and weights each distance of the correlogram by the number of voxels averaged into it. Unchecked, every distance is fit equally.", required = false)
+    protected boolean countWeightedFit;
+
     @Parameter(label = "Generate contribution images?", description = "Generates images that highlight the signal from Image 1 and Image 2 that contributed to the result. Uncheck to use less memory.", required = false)
     protected boolean generateContributionImages;
 
+    @Parameter(label = "Preview binning:", description = "Runs the correlation and Gaussian fit on inputs binned 2x or 4x, and reports the approximate mean and standard deviation within seconds.", choices = {"None", "2x", "4x"}, required = false)
+    protected String previewBinning = "None";
+
+    @Parameter(label = "Refine preview at full resolution?", description = "After the preview, runs the full-resolution analysis only up to the distances covered by the preview fit (mean + 5 SD of every Gaussian).", required = false)
+    protected boolean refinePreview;
+
     @Parameter(type = ItemIO.OUTPUT)
     protected Dataset ContributionOf1, ContributionOf2;
 
     @Parameter(type = ItemIO.OUTPUT, label = "Correlogram data")
     protected Table<org.scijava.table.Column<Double>, Double> resultsTable;
 
+    @Parameter(type = ItemIO.OUTPUT, label = "Number of Gaussians selection")
+    protected Table gaussianCountTable;
+
     //region Time-lapse specific variables for Gaussian fit
     @Parameter (type = ItemIO.OUTPUT, label = "Correlation over time")
     protected Table fullTimeCorrelationTableOut;
 
     protected ArrayList<LinkedHashMap<String,Double>> fullTimeCorrelationTable;
+    //Fit of the previous frame, the start point of the next frame's fit
+    protected double[] previousFrameFit;
     //endregion
 
     protected CrossCorrelationFunctions ccFunctions;
@@ -74,7 +104,7 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
         super.initializePlugin(intermediateNames);
         if(numGaussians2Fit == 0)
             numGaussians2Fit = 1;
-        if (generateContributionImages) {
+        if (generateContributionImages && !previewOnly) {
             initializeContributionImages();
             maxStatus += dataset1.getFrames();
         } else if (showIntermediates) {
@@ -82,31 +112,172 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
         }
     }
 
+    /** Runs the correlation, radial profile and Gaussian fit on binned copies of the inputs (the first frame of a
+     * time-lapse) and adds the approximate result to the summary. With refinement, the full-resolution analysis is
+     * then limited to the distances covered by the preview fit, otherwise only the preview is run. With automatic
+     * selection, the number of Gaussians of the preview is selected on the binned correlogram.
+     */
+    @Override
+    protected void runPreview(){
+        int factor = previewBinning == null || previewBinning.equals("None") ? 1 : Integer.parseInt(previewBinning.substring(0, 1));
+        if(factor == 1)
+            return;
+        statusService.showStatus("Running preview on " + previewBinning + " binned data");
+        long start = System.nanoTime();
+
+        RandomAccessibleInterval<FloatType> img1 = convertedImg1, img2 = convertedImg2;
+        RandomAccessibleInterval<RealType<?>> mask = maskDataset;
+        if(dataset1.getFrames() != 1){
+            img1 = Views.hyperSlice(convertedImg1, timeAxis, 0);
+            img2 = Views.hyperSlice(convertedImg2, timeAxis, 0);
+            mask = Views.hyperSlice(maskDataset, timeAxis, 0);
+        }
+        Img<FloatType> binned1 = Binning.bin(img1, factor);
+        Img<FloatType> binned2 = Binning.bin(img2, factor);
+        Img<FloatType> binnedMask = Binning.binMask(mask, factor, binned1, binned2);
+        long[] axisFactors = Binning.axisFactors(img1, factor);
+        double[] binnedScale = new double[scale.length];
+        for (int i = 0; i < scale.length; i++) {
+            binnedScale[i] = scale[i] * axisFactors[i];
+        }
+
+        int maxGaussians = numGaussians2Fit;
+        CrossCorrelationFunctions previewFunctions = new CrossCorrelationFunctions(binned1, binned2, binnedMask, binnedScale, maxCorrelationDistance, binned1.factory());
+        previewFunctions.setAlgebraicSubtraction(true);
+
+        try {
+            radialProfiler = configureProfiler(new RadialProfiler(binned1, binnedScale, numGaussians2Fit));
+            //profiled straight from the inverse transforms in a single traversal, see CrossCorrelationFunctions.getCCView
+            RandomAccessibleInterval<FloatType> subtracted = previewFunctions.getSubtractedCCView(binned1, binned2, binnedMask);
+            calculatePreviewProfiles(previewFunctions, subtracted);
+            radialProfiler.correlationData.setFitModel(fitModel);
+            radialProfiler.correlationData.setCountWeightedFit(countWeightedFit);
+            if(gaussianCountSelection != null && !gaussianCountSelection.equals(FIXED_COUNT)) {
+                selectGaussianCount();
+                //the full-resolution analysis selects again on its own correlogram, up to the same number
+                if(refinePreview) {
+                    numGaussians2Fit = maxGaussians;
+                    gaussianCountTable = null;
+                }
+            }
+            else
+                radialProfiler.correlationData.fitGaussianCurve();
+        } catch (Exception e) {
+            //the full-resolution analysis selects the number of Gaussians on its own
+            gaussianCountTable = null;
+            logService.warn("Failed to fit gaussian curve to the " + previewBinning + " binned preview, running the full-resolution analysis instead.");
+            return;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double previewDistance = 0;
+        String previewSummary = "Preview on " + previewBinning + " binned data (" + getSigDigits(seconds) + " s):\n";
+        for (int i = 0; i < radialProfiler.correlationData.curveCount; i++) {
+            double mean = radialProfiler.correlationData.getGaussianMean(i);
+            double sd = radialProfiler.correlationData.getGaussianSD(i);
+            previewSummary = previewSummary + "Mean" + (i+1) + ": " + getSigDigits(mean) + " " + getUnitType() + ", StDev" + (i+1) + ": " + getSigDigits(sd) + " " + getUnitType() + "\n";
+            previewDistance = Math.max(previewDistance, mean + (5 * sd));
+        }
+        logService.info(previewSummary);
+        summary = summary + previewSummary + "\n";
+
+        if(!refinePreview){
+            previewOnly = true;
+            return;
+        }
+        //The full-resolution correlation is only needed over the distances the preview fit covers
+        if(previewDistance > 0 && (maxCorrelationDistance <= 0 || previewDistance < maxCorrelationDistance))
+            maxCorrelationDistance = previewDistance;
+    }
+
+    //Profiles of the binned correlations the preview fit uses, the original and subtracted correlograms
+    protected void calculatePreviewProfiles(CrossCorrelationFunctions previewFunctions, RandomAccessibleInterval<FloatType> subtracted){
+        radialProfiler.calculateBothProfiles(previewFunctions.getCCViewInSecondWorkspace(), subtracted);
+    }
+
+    //Output of a preview without refinement: the correlogram, tables and summary of the binned data
+    protected void generatePreviewResults(){
+        generateCorrelogram();
+        generateFullCorrelationTable();
+        generateSingleFrameResults();
+        if(saveFolder != null && !saveFolder.getPath().equals("")){
+            saveResultsToFolder();
+        }
+        finish();
+    }
+
     protected void initializeContributionImages(){
-        ContributionOf1 = datasetService.create(new FloatType(), dataset1.dimensionsAsLongArray(), "Contribution of " + dataset1.getName(), inputAxisTypes);
+        ContributionOf1 = createFloatDataset(dataset1.dimensionsAsLongArray(), "Contribution of " + dataset1.getName());
         ContributionOf1.setAxes(inputCalibratedAxes);
-        ContributionOf2 = datasetService.create(new FloatType(), dataset1.dimensionsAsLongArray(), "Contribution of " + dataset2.getName(), inputAxisTypes);
+        ContributionOf2 = createFloatDataset(dataset1.dimensionsAsLongArray(), "Contribution of " + dataset2.getName());
         ContributionOf2.setAxes(inputCalibratedAxes);
     }
 
     protected void initializeData(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, double [] inputScale, ImgFactory<R> imgFactory){
-        ccFunctions = new CrossCorrelationFunctions(img1, img2, mask, scale, imgFactory);
+        //One instance per run, later frames reuse its FFT workspaces
+        if(ccFunctions == null) {
+            ccFunctions = new CrossCorrelationFunctions(img1, img2, mask, scale, maxCorrelationDistance, imgFactory);
+            ccFunctions.setAlgebraicSubtraction(true);
+            initializeOutOfCore(ccFunctions);
+        }
+        else
+            ccFunctions.setFrame(img1, img2, mask, !staticMask);
     }
 
     protected void fitGaussianCurves(){
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Fitting gaussian to data");
-        try{radialProfiler.correlationData.fitGaussianCurve();}
+        try{
+            radialProfiler.correlationData.setFitModel(fitModel);
+            radialProfiler.correlationData.setCountWeightedFit(countWeightedFit);
+            radialProfiler.correlationData.setStartPoint(previousFrameFit);
+            //the number of Gaussians is only selected once, later frames use it
+            if(gaussianCountSelection != null && !gaussianCountSelection.equals(FIXED_COUNT) && gaussianCountTable == null)
+                selectGaussianCount();
+            else
+                radialProfiler.correlationData.fitGaussianCurve();
+            if(dataset1.getFrames() != 1)
+                previousFrameFit = radialProfiler.correlationData.getFitParameters();
+        }
+        catch (IllegalStateException e){
+            //too few distances to fit, reported with the error values like a failed fit
+            previousFrameFit = null;
+            logService.warn("Failed to fit gaussian curve to cross correlation of " + dataset1.getName() + " and " + dataset2.getName() + ": " + e.getMessage());
+            if(generateContributionImages)
+                ++currentStatus;
+        }
         catch (NullPointerException e){
+            previousFrameFit = null;
             logService.warn("Failed to fit gaussian curve to cross correlation of " + dataset1.getName() + " and " + dataset2.getName() + ", suggesting no correlation between the images.\nAcquired data and intermediate correlation images (if the option was selected) will still be shown. Statistical measures will be set to error values (-1).");
             if(generateContributionImages)
                 ++currentStatus;
         }
     }
 
+    /** Fits every number of Gaussians from 1 to numGaussians2Fit to the current correlogram at the same time, and
+     * keeps the fit with the lowest AIC or BIC, which then sets numGaussians2Fit, see CorrelationData.selectGaussianCount.
+     * The scores of every number are reported in the gaussianCountTable. If none of the fits succeed, the failure is
+     * recorded in the table, so numGaussians2Fit stays fixed for the later frames, and a NullPointerException is thrown
+     * like for a failed fit.
+     */
+    protected void selectGaussianCount(){
+        CorrelationData.GaussianCountSelection selection = CorrelationData.selectGaussianCount(radialProfiler.correlationData, numGaussians2Fit, gaussianCountSelection.equals(BIC_COUNT));
+        gaussianCountTable = Tables.wrap(selection.getRows(significantDigits), null);
+        if(!selection.hasSelection()) {
+            //left at the error values of the largest fit, which every later frame fits
+            radialProfiler.correlationData = selection.candidates.get(selection.candidates.size() - 1);
+            summary = summary + "Number of Gaussians could not be selected by " + selection.getCriterion() + ", " + numGaussians2Fit + " are fit\n\n";
+            throw new NullPointerException("Could not fit Gaussian curve to data");
+        }
+
+        numGaussians2Fit = selection.selected.curveCount;
+        radialProfiler.correlationData = selection.selected;
+        summary = summary + "Number of Gaussians selected by " + selection.getCriterion() + ": " + numGaussians2Fit + "\n\n";
+    }
+
     protected void generateContributionImages(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval <FloatType> img2, Img<FloatType> subtracted, RandomAccessibleInterval <R> gaussianCCimageOutput, final RandomAccessibleInterval <R> contribution1, final RandomAccessibleInterval <R> contribution2){
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Determining channel contributions");
         //gaussModifiedCorr = imgFactory.create(img1);
-        Img<FloatType> gaussModifiedCorr = ops.create().img(img1, new FloatType());
+        Img<FloatType> gaussModifiedCorr = createFloatImg(subtracted.dimensionsAsLongArray());
 
         ccFunctions.generateGaussianModifiedCCImage(subtracted, gaussModifiedCorr, radialProfiler.correlationData);
 
@@ -120,22 +291,23 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
     @Override
     protected void generateFullCorrelationTable(){
         List<HashMap<String,Double>> correlationTableList = new ArrayList<>();
-        SortedMap<Double, Double> keyMap;
+        Correlogram keys;
 
-        keyMap = radialProfiler.correlationData.oCorrMap != null ? radialProfiler.correlationData.oCorrMap : radialProfiler.correlationData.sCorrMap;
+        keys = radialProfiler.correlationData.oCorrelogram != null ? radialProfiler.correlationData.oCorrelogram : radialProfiler.correlationData.sCorrelogram;
 
-        keyMap.keySet().stream().forEachOrdered((d) -> {
+        for (int k = 0; k < keys.size(); k++) {
+            double d = keys.getDistance(k);
             LinkedHashMap<String, Double> row = new LinkedHashMap<String, Double>();
             row.put("Distance (" + getUnitType() +")", (getSigDigits(d)));
-            if(radialProfiler.correlationData.oCorrMap != null) row.put("Original CC", getSigDigits(radialProfiler.correlationData.oCorrMap.get(d)));
-            if(radialProfiler.correlationData.sCorrMap != null) row.put("Subtracted CC", getSigDigits(radialProfiler.correlationData.sCorrMap.get(d)));
+            if(radialProfiler.correlationData.oCorrelogram != null) row.put("Original CC", getSigDigits(radialProfiler.correlationData.oCorrelogram.getValue(k)));
+            if(radialProfiler.correlationData.sCorrelogram != null) row.put("Subtracted CC", getSigDigits(radialProfiler.correlationData.sCorrelogram.getValue(k)));
             if(radialProfiler.correlationData.gaussians != null) {
                 for (int i = 0; i < numGaussians2Fit; i++) {
                     row.put(("Gaussian fit-" + (i+1)), getSigDigits(radialProfiler.correlationData.gaussians.getGaussian(i).value(d)));
                 }
             }
             correlationTableList.add(row);
-        });
+        }
         correlationTable = Tables.wrap(correlationTableList, null);
     }
 
@@ -143,17 +315,7 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
         //For non-time lapse data, this just returns the Hashmap of the results
 
         if(dataset1.getFrames() == 1){
-            LinkedHashMap<String, Double> gaussResultsHash = new LinkedHashMap<>();
-            for (int i = 0; i < numGaussians2Fit; i++) {
-                gaussResultsHash.put("Mean"+(i+1)+" (" + getUnitType() + ")", getSigDigits(radialProfiler.correlationData.getGaussianMean(i)));
-                gaussResultsHash.put("StDev"+(i+1)+" (" + getUnitType() + ")", getSigDigits(radialProfiler.correlationData.getGaussianSD(i)));
-                gaussResultsHash.put("Height"+(i+1), getSigDigits(radialProfiler.correlationData.getGaussianPeakHeight(i)));
-                if (radialProfiler.correlationData.hasConfidence()) gaussResultsHash.put(("Confidence"+(i+1)), getSigDigits(radialProfiler.correlationData.getConfidence(i)));
-            }
-            gaussResultsHash.put("R-squared", getSigDigits(radialProfiler.correlationData.getRSquared()));
-
-            generateResultsTable(gaussResultsHash);
-            addGaussianToSummaryFile(gaussResultsHash);
+            generateSingleFrameResults();
         }
         else{
             LinkedHashMap<String, Double> bestFrame = getBestFrameResults();
@@ -165,6 +327,20 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
         }
     }
 
+    protected void generateSingleFrameResults(){
+        LinkedHashMap<String, Double> gaussResultsHash = new LinkedHashMap<>();
+        for (int i = 0; i < numGaussians2Fit; i++) {
+            gaussResultsHash.put("Mean"+(i+1)+" (" + getUnitType() + ")", getSigDigits(radialProfiler.correlationData.getGaussianMean(i)));
+            gaussResultsHash.put("StDev"+(i+1)+" (" + getUnitType() + ")", getSigDigits(radialProfiler.correlationData.getGaussianSD(i)));
+            gaussResultsHash.put("Height"+(i+1), getSigDigits(radialProfiler.correlationData.getGaussianPeakHeight(i)));
+            if (radialProfiler.correlationData.hasConfidence()) gaussResultsHash.put(("Confidence"+(i+1)), getSigDigits(radialProfiler.correlationData.getConfidence(i)));
+        }
+        gaussResultsHash.put("R-squared", getSigDigits(radialProfiler.correlationData.getRSquared()));
+
+        generateResultsTable(gaussResultsHash);
+        addGaussianToSummaryFile(gaussResultsHash);
+    }
+
     protected void generateResultsTable(LinkedHashMap<String, Double> resultsData){
         resultsData.forEach((key, value) ->{value = getSigDigits(value);});
         resultsTable = Tables.wrap(resultsData, null);
@@ -239,10 +415,12 @@ public abstract class Abstract_CCC_gaussian <R extends RealType<R>, F extends Fl
         try {
             if(resultsTable != null) ioService.save(resultsTable,saveFolder.getAbsolutePath() + File.separator + "CC Results.csv" );
             FileUtils.writeStringToFile(new File(saveFolder.getAbsolutePath() + File.separator + "Summary.txt"), summary, (Charset) null);
+            if(gaussianCountTable != null)
+                ioService.save(gaussianCountTable, saveFolder.getAbsolutePath() + File.separator + "Number of Gaussians selection.csv");
             if(fullTimeCorrelationTable != null){
                 ioService.save(fullTimeCorrelationTableOut, saveFolder.getAbsolutePath() + File.separator + "Gaussian fits over time.csv");
             }
-            if(generateContributionImages){
+            if(generateContributionImages && !previewOnly){
                 saveDatasetsToFolder(ContributionOf1, ContributionOf2);
             }
         } catch (IOException e) {
@@ -29,6 +29,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
+import utils.CrossCorrelationFunctions;
 import utils.RadialProfiler;
 
 
@@ -45,16 +46,21 @@ public class CCC_No_Confidence extends Abstract_CCC_gaussian {
     }
 
     @Override
-    public void run(){
+    protected void runAnalysis(){
         maxStatus = 4;
         if(generateContributionImages)
             initializePlugin(new String[]{"Subtracted CC result", "Gaussian-modified CC result"});
         else initializePlugin(new String[]{"Subtracted CC result"});
 
+        if(previewOnly){
+            generatePreviewResults();
+            return;
+        }
+
         //region Single frame analysis
         if(dataset1.getFrames() == 1) {
             try {
-                radialProfiler = new RadialProfiler(convertedImg1, scale, numGaussians2Fit);
+                radialProfiler = configureProfiler(new RadialProfiler(convertedImg1, scale, numGaussians2Fit));
             } catch (Exception e) {
                 e.printStackTrace();
                 return;
@@ -83,7 +89,7 @@ public class CCC_No_Confidence extends Abstract_CCC_gaussian {
                     }
                 }
                 try {
-                    radialProfiler = new RadialProfiler(temp1, scale, numGaussians2Fit);
+                    radialProfiler = configureProfiler(new RadialProfiler(temp1, scale, numGaussians2Fit));
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
@@ -113,9 +119,13 @@ public class CCC_No_Confidence extends Abstract_CCC_gaussian {
         finish();
     }
 
-    private <R extends RealType<?>> void colocalizationAnalysis(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> imgMask, RadialProfiler radialProfiler, final RandomAccessibleInterval <R> contribution1, final RandomAccessibleInterval <R> contribution2, RandomAccessibleInterval <R> [] localIntermediates, ImgFactory imgFactory){
+    //Like the full analysis, the preview only profiles the subtracted correlation
+    @Override
+    protected void calculatePreviewProfiles(CrossCorrelationFunctions previewFunctions, RandomAccessibleInterval<FloatType> subtracted){
+        radialProfiler.calculateSCorrProfile(subtracted);
+    }
 
-        Img<FloatType> subtracted = ops.create().img(img1, new FloatType());
+    private <R extends RealType<?>> void colocalizationAnalysis(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> imgMask, RadialProfiler radialProfiler, final RandomAccessibleInterval <R> contribution1, final RandomAccessibleInterval <R> contribution2, RandomAccessibleInterval <R> [] localIntermediates, ImgFactory imgFactory){
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Generating averaged mask");
 
@@ -123,7 +133,15 @@ public class CCC_No_Confidence extends Abstract_CCC_gaussian {
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Generating subtracted correlation");
 
-        ccFunctions.generateSubtractedCCImage(img1, img2, imgMask, subtracted, imgFactory);
+        //View of the inverse transform, normalized as it is profiled. It is only written when it is kept
+        RandomAccessibleInterval<FloatType> subtracted = ccFunctions.getSubtractedCCView(img1, img2, imgMask);
+        Img<FloatType> subtractedImg = null;
+        if(generateContributionImages){
+            //the contributions need the subtracted correlation after further transforms
+            subtractedImg = createFloatImg(ccFunctions.getCorrelationDimensions());
+            LoopBuilder.setImages(subtractedImg, subtracted).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
+            subtracted = subtractedImg;
+        }
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating radial profile");
 
@@ -132,15 +150,13 @@ public class CCC_No_Confidence extends Abstract_CCC_gaussian {
         if(showIntermediates) {
             LoopBuilder.setImages(localIntermediates[0], subtracted).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
         }
-        if(!generateContributionImages){
-            subtracted = null;
-        }
 
         fitGaussianCurves();
 
         if(generateContributionImages) {
-            generateContributionImages(img1, img2, subtracted, localIntermediates == null ? null : localIntermediates[1], contribution1,contribution2);
+            generateContributionImages(img1, img2, subtractedImg, localIntermediates == null ? null : localIntermediates[1], contribution1,contribution2);
         }
+        ccFunctions.clearSpectra();
     }
 }
 
@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package CCC;
+
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.table.Table;
+import org.scijava.table.Tables;
+import utils.AveragedMask;
+import utils.CorrelationData;
+import utils.CrossCorrelationFunctions;
+import utils.ErrorChecking;
+import utils.RadialProfiler;
+import utils.SharedExecutor;
+import utils.SignificantDigits;
+
+import java.util.ArrayList;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/** Cross-correlates every pair of channels of a multi-channel image. Each channel is transformed once and its
+ * spectrum is reused for all the pairs it belongs to, so n channels need n forward FFTs instead of n*(n-1).
+ * Only the pairs with the lower channel as the first image are correlated, and the matrices mirror this upper
+ * triangle. The mean-subtracted correlation is not symmetric in the channel order, so a mirrored cell is not the fit
+ * of the reverse order.
+ */
+@Plugin(type = Command.class, headless = true, menuPath = "Analyze>Colocalization>Colocalization by Cross Correlation>Channel correlation matrix")
+public class Channel_Correlation_Matrix extends ContextCommand {
+
+    @Parameter
+    protected LogService logService;
+
+    @Parameter
+    protected StatusService statusService;
+
+    @Parameter
+    protected OpService ops;
+
+    @Parameter(label = "Multi-channel image: ", persist = false)
+    protected Dataset dataset;
+
+    @Parameter(label = "No mask (not recommended)?", description = "Only check this if your image has no region of interest for analysis purposes.", required = false)
+    protected boolean maskAbsent;
+
+    @Parameter(label = "Mask: ", description = "Single channel mask, shared by all channels. This is important, more details at: imagej.net/plugins/colocalization-by-cross-correlation", required = false, persist = false)
+    protected Dataset maskDataset;
+
+    @Parameter(label = "Number of Gaussians to fit:", description = "Values > 1 fit a multi-term sum of Gaussians curve to the data", required=false)
+    protected int numGaussians2Fit;
+
+    @Parameter(label = "Gaussian fit model:", description = "Mirrored around the peak mirrors the data beyond the peak to negative distances. Truncated at zero fits the zero-bounded correlogram directly with Gaussians renormalized by their mass above zero.", choices = {CorrelationData.MIRRORED_FIT, CorrelationData.TRUNCATED_FIT}, required = false)
+    protected String fitModel = CorrelationData.MIRRORED_FIT;
+
+    @Parameter(label = "Weight fit by voxel counts?", description = "Merges close distances and weights each distance of the correlogram by the number of voxels averaged into it. Unchecked, every distance is fit equally.", required = false)
+    protected boolean countWeightedFit;
+
+    @Parameter(label = "Significant digits: ", required = false)
+    protected int significantDigits;
+
+    @Parameter(label = "Maximum correlation distance (0 for no limit): ", description = "Largest distance, in calibrated units, for which the cross-correlation is calculated. Limiting it reduces the padding, memory and time of the FFTs on large images.", required = false)
+    protected double maxCorrelationDistance;
+
+    @Parameter(label = "Distance binning: ", description = "Exact shells keeps every distinct distance of the correlogram. Fixed width and log-spaced bins group them, which reduces the number of distances by orders of magnitude on anisotropic 3D data.", choices = {RadialProfiler.EXACT_BINNING, RadialProfiler.FIXED_WIDTH_BINNING, RadialProfiler.LOG_BINNING}, required = false)
+    protected String distanceBinning = RadialProfiler.EXACT_BINNING;
+
+    @Parameter(label = "Bin width (calibrated units, relative growth for log-spaced): ", description = "Width of the fixed bins, or growth of each log-spaced bin over the previous one (e.g. 0.05 for 5%). Must be > 0 for fixed width and log-spaced bins, exact shells ignore it.", min = "0", required = false)
+    protected double binWidth;
+
+    @Parameter(label = "Maximum correlogram radius (0 for no limit): ", description = "Largest distance, in calibrated units, reported in the correlograms and used by the fits. Only the center of the correlation images is scanned.", required = false)
+    protected double maxProfileRadius;
+
+    @Parameter(label = "Memory budget (MB, 0 uses half of the free memory): ", description = "Memory for the FFT buffers of the channel pairs correlated at the same time. Fewer pairs are correlated in parallel when their buffers would not fit.", required = false)
+    protected long memoryBudget;
+
+    @Parameter(label = "Number of threads (0 uses all cores): ", description = "Maximum number of threads used by the correlation, FFT and fitting steps of this run.", required = false)
+    protected int numThreads;
+
+    @Parameter(type = ItemIO.OUTPUT, label = "Mean distance matrix", description = "Row A, column B holds the fit of the correlation of channel A (first image, mean subtracted) with channel B for A < B, the matrix is symmetrized from this upper triangle. The diagonal is empty.")
+    protected Table meanMatrix;
+
+    @Parameter(type = ItemIO.OUTPUT, label = "Standard deviation matrix", description = "Row A, column B holds the fit of the correlation of channel A (first image, mean subtracted) with channel B for A < B, the matrix is symmetrized from this upper triangle. The diagonal is empty.")
+    protected Table sdMatrix;
+
+    @Parameter(type = ItemIO.OUTPUT, label = "Confidence matrix", description = "Row A, column B holds the fit of the correlation of channel A (first image, mean subtracted) with channel B for A < B, the matrix is symmetrized from this upper triangle. The diagonal is empty.")
+    protected Table confidenceMatrix;
+
+    @Parameter(type = ItemIO.OUTPUT, label = "Channel pair results", description = "One row per pair of channels A x B with A < B, channel A is the first image of the correlation. Failed fits are NaN.")
+    protected Table pairTable;
+
+    protected double[] scale;
+    protected List<RandomAccessibleInterval<FloatType>> channels;
+    protected Img<FloatType> mask;
+    //CorrelationData of each pair, indexed by [channel A][channel B] with A < B
+    protected CorrelationData[][] pairData;
+
+    @Override
+    public void run() {
+        try (SharedExecutor executor = new SharedExecutor(numThreads)) {
+            executor.run(this::correlateChannels);
+        }
+    }
+
+    protected void correlateChannels() {
+        if(numGaussians2Fit == 0)
+            numGaussians2Fit = 1;
+        if(maskDataset == null)
+            maskAbsent = true;
+
+        initializeChannels();
+        int channelCount = channels.size();
+
+        CrossCorrelationFunctions ccFunctions = new CrossCorrelationFunctions(channels.get(0), channels.get(1), mask, scale, maxCorrelationDistance, mask.factory());
+        //the subtracted correlations are derived from the cached spectra, the channels are zero outside the mask
+        ccFunctions.setAlgebraicSubtraction(true);
+        double[] means = new double[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            means[i] = new AveragedMask(channels.get(i), mask).getMeanUnderMask();
+        }
+
+        //Each channel is transformed once, then the pairs are correlated in parallel from the cached spectra
+        ccFunctions.cacheSpectra(channels, mask);
+        List<int[]> pairs = new ArrayList<>();
+        for (int a = 0; a < channelCount; a++) {
+            for (int b = a + 1; b < channelCount; b++) {
+                pairs.add(new int[]{a, b});
+            }
+        }
+        int pairCount = pairs.size();
+        double minRadius = RadialProfiler.minimumRadius(scale, distanceBinning, binWidth, 3 * numGaussians2Fit);
+        if(maxProfileRadius > 0 && maxProfileRadius < minRadius) {
+            logService.warn("A maximum correlogram radius of " + maxProfileRadius + " leaves too few distances to fit " + numGaussians2Fit + " Gaussian(s), it is raised to " + minRadius + ".");
+            maxProfileRadius = minRadius;
+        }
+        pairData = new CorrelationData[channelCount][channelCount];
+        RadialProfiler[] profilers = new RadialProfiler[pairCount];
+
+        //Each group of pairs is correlated one pair after the other in its own copy of the FFT workspaces, so the
+        //number of groups bounds the workspaces held at the same time
+        int groupCount = getConcurrentPairs(pairCount, ccFunctions);
+        List<List<Integer>> groups = new ArrayList<>();
+        for (int g = 0; g < groupCount; g++) {
+            groups.add(new ArrayList<>());
+        }
+        for (int p = 0; p < pairCount; p++) {
+            groups.get(p % groupCount).add(p);
+        }
+        AtomicInteger correlated = new AtomicInteger();
+        Parallelization.getTaskExecutor().forEach(groups, group -> {
+            CrossCorrelationFunctions workspace = ccFunctions.withOwnWorkspaces();
+            for (int p : group) {
+                int a = pairs.get(p)[0], b = pairs.get(p)[1];
+                //Both profiles are read from views of the inverse transforms in a single traversal, no correlation
+                //image is written. The subtracted view goes first, so the second workspace reuses its cached spectra
+                RandomAccessibleInterval<FloatType> sCorr = workspace.getSubtractedCCView(channels.get(a), means[a], channels.get(b), mask);
+                RandomAccessibleInterval<FloatType> oCorr = workspace.getCCViewInSecondWorkspace(channels.get(a), channels.get(b));
+                RadialProfiler profiler;
+                try {
+                    profiler = new RadialProfiler(oCorr, scale, numGaussians2Fit);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                profiler.setBinning(distanceBinning, binWidth);
+                profiler.setMaxRadius(maxProfileRadius);
+                profiler.calculateBothProfiles(oCorr, sCorr);
+                profilers[p] = profiler;
+                pairData[a][b] = profiler.correlationData;
+                statusService.showStatus(correlated.incrementAndGet(), pairCount, "Correlated channels " + (a+1) + " and " + (b+1));
+            }
+        });
+        ccFunctions.clearSpectra();
+
+        //The curve fits are independent, so they run in parallel
+        statusService.showStatus("Fitting Gaussian curves");
+        Parallelization.getTaskExecutor().forEach(IntStream.range(0, pairCount).boxed().collect(Collectors.toList()), p -> {
+            CorrelationData data = profilers[p].correlationData;
+            try {
+                data.setFitModel(fitModel);
+                data.setCountWeightedFit(countWeightedFit);
+                data.fitGaussianCurve();
+            } catch (RuntimeException e) {
+                //a failed fit only affects its own pair, values it did not produce are NaN in the tables
+                logService.warn("Gaussian fit failed for channels " + (pairs.get(p)[0]+1) + " and " + (pairs.get(p)[1]+1) + ": " + e.getMessage());
+            }
+        });
+
+        generateTables(channelCount);
+        statusService.showStatus(pairCount, pairCount, "Channel correlation matrix finished!");
+    }
+
+    /* Number of pairs correlated at the same time. Each holds the product and inverse workspaces of two correlations
+     * (subtracted and original), so as many run at once as fit in the memory budget, at most one per thread.
+     */
+    protected int getConcurrentPairs(int pairCount, CrossCorrelationFunctions ccFunctions){
+        long budget = memoryBudget * 1024 * 1024;
+        if(budget <= 0) {
+            Runtime runtime = Runtime.getRuntime();
+            budget = (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) / 2;
+        }
+        long pairBytes = 2 * ccFunctions.getWorkspaceBytes();
+        long fitting = Math.max(1, budget / pairBytes);
+        if(fitting < Math.min(pairCount, Parallelization.getTaskExecutor().getParallelism()))
+            logService.info("The FFT buffers of " + fitting + " channel pairs fit in the memory budget, fewer pairs are correlated in parallel.");
+        return (int) Math.min(Math.min(pairCount, Parallelization.getTaskExecutor().getParallelism()), fitting);
+    }
+
+    //Converts each channel to float and zeros it outside the mask
+    protected void initializeChannels(){
+        int channelAxis = dataset.dimensionIndex(Axes.CHANNEL);
+        if(channelAxis < 0 || dataset.getChannels() < 2)
+            throw new IllegalArgumentException("The channel correlation matrix requires an image with at least two channels");
+        if(dataset.getFrames() > 1)
+            throw new IllegalArgumentException("Time-lapse images are not supported by the channel correlation matrix");
+        ErrorChecking.binningCheck(distanceBinning, binWidth);
+
+        scale = new double[dataset.numDimensions()-1];
+        for (int i = 0, j = 0; i < dataset.numDimensions(); i++) {
+            if(i != channelAxis)
+                scale[j++] = dataset.averageScale(i);
+        }
+
+        Img<FloatType> converted = ops.convert().float32((Img) dataset.getImgPlus());
+        channels = new ArrayList<>();
+        for (long c = 0; c < dataset.getChannels(); c++) {
+            channels.add(Views.hyperSlice(converted, channelAxis, c));
+        }
+
+        mask = ops.create().img(channels.get(0), new FloatType());
+        if(maskAbsent) {
+            LoopBuilder.setImages(mask).multiThreaded().forEachPixel(FloatType::setOne);
+            return;
+        }
+        if(maskDataset.getChannels() > 1 || !Intervals.equalDimensions(mask, maskDataset))
+            throw new InputMismatchException("Dimensions of " + maskDataset.getName() + " do not match a single channel of " + dataset.getName() + ".");
+        LoopBuilder.setImages(mask, maskDataset).multiThreaded().forEachPixel((m, b) -> m.setReal(b.getRealDouble() != 0.0 ? 1 : 0));
+        for (RandomAccessibleInterval<FloatType> channel : channels) {
+            LoopBuilder.setImages(channel, mask).multiThreaded().forEachPixel((a, m) -> {
+                if (m.getRealDouble() == 0.0) {
+                    a.setZero();
+                }
+            });
+        }
+    }
+
+    protected void generateTables(int channelCount){
+        List<String> channelNames = new ArrayList<>();
+        for (int i = 0; i < channelCount; i++) {
+            channelNames.add("Channel " + (i+1));
+        }
+        List<LinkedHashMap<String, Double>> meanRows = new ArrayList<>();
+        List<LinkedHashMap<String, Double>> sdRows = new ArrayList<>();
+        List<LinkedHashMap<String, Double>> confidenceRows = new ArrayList<>();
+        for (int a = 0; a < channelCount; a++) {
+            LinkedHashMap<String, Double> meanRow = new LinkedHashMap<>(), sdRow = new LinkedHashMap<>(), confidenceRow = new LinkedHashMap<>();
+            for (int b = 0; b < channelCount; b++) {
+                CorrelationData data = a < b ? pairData[a][b] : pairData[b][a];
+                for (int i = 0; i < numGaussians2Fit; i++) {
+                    String column = channelNames.get(b) + (numGaussians2Fit > 1 ? " (" + (i+1) + ")" : "");
+                    boolean fitted = data != null && data.hasFitParameters();
+                    meanRow.put(column, fitted ? getSigDigits(data.getGaussianMean(i)) : Double.NaN);
+                    sdRow.put(column, fitted ? getSigDigits(data.getGaussianSD(i)) : Double.NaN);
+                    confidenceRow.put(column, fitted && data.hasConfidence() ? getSigDigits(data.getConfidence(i)) : Double.NaN);
+                }
+            }
+            meanRows.add(meanRow);
+            sdRows.add(sdRow);
+            confidenceRows.add(confidenceRow);
+        }
+        meanMatrix = Tables.wrap(meanRows, channelNames);
+        sdMatrix = Tables.wrap(sdRows, channelNames);
+        confidenceMatrix = Tables.wrap(confidenceRows, channelNames);
+
+        String unit = dataset.axis(Axes.X).isPresent() ? dataset.axis(Axes.X).get().unit() : "Unlabeled distance unit";
+        List<LinkedHashMap<String, Double>> pairRows = new ArrayList<>();
+        List<String> pairNames = new ArrayList<>();
+        for (int a = 0; a < channelCount; a++) {
+            for (int b = a + 1; b < channelCount; b++) {
+                CorrelationData data = pairData[a][b];
+                LinkedHashMap<String, Double> row = new LinkedHashMap<>();
+                boolean fitted = data != null && data.hasFitParameters();
+                for (int i = 0; i < numGaussians2Fit; i++) {
+                    row.put("Mean"+(i+1)+" (" + unit + ")", fitted ? getSigDigits(data.getGaussianMean(i)) : Double.NaN);
+                    row.put("StDev"+(i+1)+" (" + unit + ")", fitted ? getSigDigits(data.getGaussianSD(i)) : Double.NaN);
+                    //every row has the same columns, in the same order
+                    row.put(("Confidence"+(i+1)), fitted && data.hasConfidence() ? getSigDigits(data.getConfidence(i)) : Double.NaN);
+                }
+                row.put("R-squared", data != null && data.hasRSquared() ? getSigDigits(data.getRSquared()) : Double.NaN);
+                pairRows.add(row);
+                pairNames.add(channelNames.get(a) + " x " + channelNames.get(b));
+            }
+        }
+        pairTable = Tables.wrap(pairRows, pairNames);
+    }
+
+    protected double getSigDigits(double input){
+        return SignificantDigits.round(input, significantDigits);
+    }
+}
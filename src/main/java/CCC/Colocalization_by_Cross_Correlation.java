@@ -46,18 +46,23 @@ public class Colocalization_by_Cross_Correlation extends Abstract_CCC_gaussian {
     }
 
     @Override
-    public void run(){
+    protected void runAnalysis(){
         maxStatus = 5;
         if(generateContributionImages)
             initializePlugin(new String[]{"Original CC result", "Subtracted CC result", "Gaussian-modified CC result"});
         else initializePlugin(new String[]{"Original CC result", "Subtracted CC result"});
 
+        if(previewOnly){
+            generatePreviewResults();
+            return;
+        }
+
 
 
         //region Single frame analysis
         if(dataset1.getFrames() == 1) {
             try {
-                radialProfiler = new RadialProfiler(convertedImg1, scale, numGaussians2Fit);
+                radialProfiler = configureProfiler(new RadialProfiler(convertedImg1, scale, numGaussians2Fit));
             } catch (Exception e) {
                 e.printStackTrace();
                 return;
@@ -86,7 +91,7 @@ public class Colocalization_by_Cross_Correlation extends Abstract_CCC_gaussian {
                     }
                 }
                 try {
-                    radialProfiler = new RadialProfiler(temp1, scale, numGaussians2Fit);
+                    radialProfiler = configureProfiler(new RadialProfiler(temp1, scale, numGaussians2Fit));
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
@@ -116,42 +121,44 @@ public class Colocalization_by_Cross_Correlation extends Abstract_CCC_gaussian {
     }
 
     private <R extends RealType<?>> void colocalizationAnalysis(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> imgMask, RadialProfiler radialProfiler, final RandomAccessibleInterval <R> contribution1, final RandomAccessibleInterval <R> contribution2, RandomAccessibleInterval <R> [] localIntermediates, ImgFactory<FloatType> floatTypeImgFactory){
-        Img<FloatType> oCorr = ops.create().img(img1, new FloatType());
-        Img<FloatType> subtracted = ops.create().img(img1, new FloatType());
-
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Generating averaged mask");
 
         initializeData(img1, img2, imgMask, scale, floatTypeImgFactory);
 
-        statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating original correlation");
-
-        ccFunctions.calculateCC(oCorr);
-
+        //The correlations are views of the inverse transforms, normalized as they are profiled. The original
+        //correlation is computed in a second workspace, so both views are valid together and a single traversal
+        //bins both. Only the images that are kept (intermediates, and the subtracted correlation for the
+        //contributions) are written
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Generating subtracted correlation");
+        RandomAccessibleInterval<FloatType> subtracted = ccFunctions.getSubtractedCCView(img1, img2, imgMask);
+        Img<FloatType> subtractedImg = null;
+        if(generateContributionImages){
+            //the contributions need the subtracted correlation after further transforms, so it is written
+            subtractedImg = createFloatImg(ccFunctions.getCorrelationDimensions());
+            LoopBuilder.setImages(subtractedImg, subtracted).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
+            subtracted = subtractedImg;
+        }
 
-        ccFunctions.generateSubtractedCCImage(img1, img2, imgMask, subtracted, floatTypeImgFactory);
-
-        statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating radial profile");
-        radialProfiler.calculateBothProfiles(oCorr, subtracted);
+        statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating original correlation");
 
+        RandomAccessibleInterval<FloatType> oCorr = ccFunctions.getCCViewInSecondWorkspace();
         if(showIntermediates) {
             LoopBuilder.setImages(localIntermediates[0], oCorr).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
         }
-        oCorr = null;
+
+        statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating radial profile");
+        radialProfiler.calculateBothProfiles(oCorr, subtracted);
 
         if(showIntermediates) {
             LoopBuilder.setImages(localIntermediates[1], subtracted).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
         }
 
-        if(!generateContributionImages){
-            subtracted = null;
-        }
-
         fitGaussianCurves();
 
         if(generateContributionImages) {
-            generateContributionImages(img1, img2, subtracted, localIntermediates == null ? null : localIntermediates[2], contribution1,contribution2);
+            generateContributionImages(img1, img2, subtractedImg, localIntermediates == null ? null : localIntermediates[2], contribution1,contribution2);
         }
+        ccFunctions.clearSpectra();
     }
 }
 
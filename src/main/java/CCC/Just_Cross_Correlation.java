@@ -22,7 +22,6 @@
 package CCC;
 
 import net.imglib2.*;
-import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
@@ -42,18 +41,20 @@ import utils.RadialProfiler;
 @Plugin(type = Command.class, menuPath = "Analyze>Colocalization>Colocalization by Cross Correlation>Just Cross Correlation")
 public class Just_Cross_Correlation extends Abstract_CCC_base {
 
+    protected CrossCorrelationFunctions ccFunctions;
+
     public Just_Cross_Correlation() {
     }
 
     @Override
-    public void run(){
+    protected void runAnalysis(){
         maxStatus = 4;
         initializePlugin(new String[]{"Original CC result"});
 
         //region Single frame analysis
         if(dataset1.getFrames() == 1) {
             try {
-                radialProfiler = new RadialProfiler(dataset1, scale);
+                radialProfiler = configureProfiler(new RadialProfiler(dataset1, scale));
             } catch (Exception e) {
                 e.printStackTrace();
                 return;
@@ -82,7 +83,7 @@ public class Just_Cross_Correlation extends Abstract_CCC_base {
                     }
                 }
                 try {
-                    radialProfiler = new RadialProfiler(temp1, scale);
+                    radialProfiler = configureProfiler(new RadialProfiler(temp1, scale));
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
@@ -114,15 +115,20 @@ public class Just_Cross_Correlation extends Abstract_CCC_base {
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating original correlation");
 
-        Img<FloatType> crossCorrelation = ops.create().img(img1, new FloatType());
-
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Initializing data");
 
-        CrossCorrelationFunctions ccFunctions = new CrossCorrelationFunctions(img1, img2, imgMask, scale, imgFactory);
+        //One instance per run, later frames reuse its FFT workspaces
+        if(ccFunctions == null) {
+            ccFunctions = new CrossCorrelationFunctions(img1, img2, imgMask, scale, maxCorrelationDistance, imgFactory);
+            initializeOutOfCore(ccFunctions);
+        }
+        else
+            ccFunctions.setFrame(img1, img2, imgMask, !staticMask);
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating cross-correlation");
 
-        ccFunctions.calculateCC(crossCorrelation);
+        //View of the inverse transform, normalized as it is profiled, so no correlation image is written
+        RandomAccessibleInterval<FloatType> crossCorrelation = ccFunctions.getCCView();
 
         if(showIntermediates) {
             LoopBuilder.setImages(localIntermediates[0], crossCorrelation).multiThreaded().forEachPixel((a, b) -> a.setReal(b.get()));
@@ -130,6 +136,7 @@ public class Just_Cross_Correlation extends Abstract_CCC_base {
 
         statusService.showStatus(currentStatus++, maxStatus,statusBase + "Calculating radial profile");
         radialProfiler.calculateOCorrProfile(crossCorrelation);
+        ccFunctions.clearSpectra();
     }
 }
 
@@ -46,6 +46,7 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import utils.Contributions;
 import utils.CorrelationData;
+import utils.SharedExecutor;
 
 import java.io.File;
 import java.io.IOException;
@@ -88,6 +89,9 @@ public class Custom_Contribution extends ContextCommand {
     @Parameter(label="Gaussian curve(s) parameters: ", description = "Comma separated list of Gaussian parameters in repeating Height, Mean, SD order", validater = "checkGaussians")
     protected String values;
 
+    @Parameter(label = "Number of threads (0 uses all cores): ", description = "Maximum number of threads used by the FFT and contribution steps of this run.", required = false)
+    protected int numThreads;
+
     @Parameter(label = "Output directory (leave blank for none):", description = "The directory to automatically save all generated output, including the intermediate images if the \"Show Intermediates\" box is checked", required = false, style="directory")
     protected File saveFolder;
 
@@ -126,6 +130,12 @@ public class Custom_Contribution extends ContextCommand {
 
     @Override
         public void run() {
+            try (SharedExecutor executor = new SharedExecutor(numThreads)) {
+                executor.run(this::generateContributions);
+            }
+        }
+
+        protected void generateContributions() {
 
             if(isCanceled()){
                 logService.error(getCancelReason());
@@ -34,17 +34,36 @@ public class AveragedMask <R extends RealType, F extends FloatType> {
     final Integer [] count = {0};
 
     public AveragedMask(RandomAccessibleInterval<F> source, RandomAccessibleInterval<R> inputMask){
-        sum[0] = 0.0;
         count[0] = 0;
-        LoopBuilder.setImages(inputMask, source).multiThreaded().forEachPixel((m, s) -> {
-            if ((m.getRealFloat() != 0.0)) {
-                synchronized (sum){
-                    sum[0] += s.getRealDouble();
+        LoopBuilder.setImages(inputMask).multiThreaded().forEachChunk(chunk -> {
+            final int[] chunkCount = {0};
+            chunk.forEachPixel(m -> {
+                if ((m.getRealFloat() != 0.0)) {
+                    chunkCount[0] += 1;
                 }
-                synchronized (count){
-                    count[0] += 1;
+            });
+            synchronized (count){
+                count[0] += chunkCount[0];
+            }
+            return null;
+        });
+        updateSum(source, inputMask);
+    }
+
+    //Recomputes the sum under the mask for a new source, e.g. the next frame of a time-lapse with a static mask
+    public void updateSum(RandomAccessibleInterval<F> source, RandomAccessibleInterval<R> inputMask){
+        sum[0] = 0.0;
+        LoopBuilder.setImages(inputMask, source).multiThreaded().forEachChunk(chunk -> {
+            final double[] chunkSum = {0.0};
+            chunk.forEachPixel((m, s) -> {
+                if ((m.getRealFloat() != 0.0)) {
+                    chunkSum[0] += s.getRealDouble();
                 }
+            });
+            synchronized (sum){
+                sum[0] += chunkSum[0];
             }
+            return null;
         });
     }
 
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/** Block averaging of images, used for quick previews of the analysis on downsampled data.
+ */
+public class Binning {
+
+    /** Averages blocks of factor voxels along every axis. Voxels beyond the last complete block are dropped.
+     * Axes shorter than the factor are left unbinned, see {@link #axisFactors(Dimensions, int)}.
+     */
+    public static Img<FloatType> bin(RandomAccessibleInterval<? extends RealType<?>> input, int factor){
+        RandomAccessibleInterval<? extends RealType<?>> source = Views.zeroMin(input);
+        int nDims = source.numDimensions();
+        long[] factors = axisFactors(source, factor);
+        long[] binnedDimensions = new long[nDims];
+        long blockSize = 1;
+        for (int d = 0; d < nDims; d++) {
+            binnedDimensions[d] = source.dimension(d) / factors[d];
+            blockSize *= factors[d];
+        }
+        Img<FloatType> binned = ArrayImgs.floats(binnedDimensions);
+
+        //every offset within a block is added from a subsampled view of the input
+        long[] offset = new long[nDims];
+        for (long i = 0; i < blockSize; i++) {
+            long index = i;
+            for (int d = 0; d < nDims; d++) {
+                offset[d] = index % factors[d];
+                index /= factors[d];
+            }
+            RandomAccessibleInterval<? extends RealType<?>> shifted = Views.interval(Views.subsample((RandomAccessible) Views.translate(source, negate(offset)), factors), binned);
+            LoopBuilder.setImages(binned, shifted).multiThreaded().forEachPixel((b, s) -> b.setReal(b.getRealDouble() + s.getRealDouble()));
+        }
+        final long finalBlockSize = blockSize;
+        LoopBuilder.setImages(binned).multiThreaded().forEachPixel(b -> b.setReal(b.getRealDouble() / finalBlockSize));
+        return binned;
+    }
+
+    /** Binning factor of each axis: the factor, or 1 for axes shorter than it, which would have no complete block.
+     */
+    public static long[] axisFactors(Dimensions input, int factor){
+        long[] factors = new long[input.numDimensions()];
+        for (int d = 0; d < factors.length; d++) {
+            factors[d] = input.dimension(d) >= factor ? factor : 1;
+        }
+        return factors;
+    }
+
+    /** Bins a mask, keeping the blocks that are at least half inside it. The binned images are zeroed outside the
+     * binned mask, as the full-resolution inputs are outside the original one.
+     */
+    public static Img<FloatType> binMask(RandomAccessibleInterval<? extends RealType<?>> mask, int factor, RandomAccessibleInterval<? extends RealType<?>>... binnedImages){
+        Img<FloatType> binnedMask = bin(toIndicator(mask), factor);
+        LoopBuilder.setImages(binnedMask).multiThreaded().forEachPixel(m -> m.setReal(m.getRealDouble() >= 0.5 ? 1 : 0));
+        for (RandomAccessibleInterval<? extends RealType<?>> binnedImage : binnedImages) {
+            LoopBuilder.setImages(binnedMask, binnedImage).multiThreaded().forEachPixel((m, b) -> {
+                if(m.getRealDouble() == 0)
+                    b.setReal(0);
+            });
+        }
+        return binnedMask;
+    }
+
+    private static <T extends RealType<?>> RandomAccessibleInterval<FloatType> toIndicator(RandomAccessibleInterval<T> mask){
+        return Converters.convert(mask, (m, i) -> i.setReal(m.getRealDouble() != 0.0 ? 1 : 0), new FloatType());
+    }
+
+    private static long[] negate(long[] values){
+        long[] negated = new long[values.length];
+        for (int d = 0; d < values.length; d++) {
+            negated[d] = -values[d];
+        }
+        return negated;
+    }
+}
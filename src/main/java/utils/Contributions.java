@@ -25,8 +25,8 @@ import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.fft2.FFTConvolution;
 import net.imglib2.algorithm.math.ImgMath;
+import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.loops.IntervalChunks;
 import net.imglib2.parallel.Parallelization;
@@ -36,73 +36,57 @@ import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.view.Views;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.IntStream;
 
 public class Contributions {
 
     public static void generateGaussianModifiedCCImage(RandomAccessibleInterval<? extends RealType> ccImage, RandomAccessibleInterval <? extends RealType> output, CorrelationData correlationData, double [] scale){
-        //get image dimensions and center
-        int nDims = ccImage.numDimensions();
-        if(nDims != scale.length)
+        if(ccImage.numDimensions() != scale.length)
             return;
-        long [] dims = new long[nDims];
-        ccImage.dimensions(dims);
-
-        //obtain center of image
-        double[] center = new double[nDims];
-        for (int i = 0; i < nDims; i++) {
-            center[i] = ((double)dims[i]-1.0)/2;
-        }
 
+        //the Gaussian is evaluated once per distance from the center, voxels look their shell up
+        ShellIndex shells = ShellIndex.get(ccImage, scale);
         nGaussian gaussians = correlationData.gaussians;
-
         double normalization = IntStream.range(0, correlationData.curveCount).mapToDouble(correlationData::getGaussianNorm).sum();
+        double[] shellWeights = new double[shells.getShellCount()];
+        for (int shell = 0; shell < shellWeights.length; shell++) {
+            shellWeights[shell] = gaussians.value(shells.getDistance(shell))/normalization;
+        }
 
-        Parallelization.runMultiThreaded( () -> {
-            TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
-            int numTasks = taskExecutor.suggestNumberOfTasks();
-            List<Interval> chunks = IntervalChunks.chunkInterval(ccImage, numTasks );
-
-            taskExecutor.forEach(chunks, chunk ->{
-                Cursor<? extends RealType> looper = Views.interval(ccImage,chunk).localizingCursor();
-                RandomAccess<? extends RealType> outLooper = output.randomAccess();
-                while(looper.hasNext()){
-                    looper.fwd();
-                    outLooper.setPosition(looper);
-                    double LscaledSq = 0;
-                    for (int i = 0; i < nDims; ++i) {
-                        LscaledSq += Math.pow((looper.getDoublePosition(i)-center[i])*scale[i],2);
-                    }
-                    double Ldistance = Math.sqrt(LscaledSq);
-                    outLooper.get().setReal(looper.get().getRealDouble()*(gaussians.value(Ldistance)/normalization));
-                    //outLooper.get().setReal(looper.get().getRealDouble()*radialProfile.gaussCurveMap.get(radialProfile.getBD(Ldistance).doubleValue()));
-                }
-            });
+        RandomAccessibleInterval<? extends RealType> source = Views.zeroMin(ccImage);
+        RandomAccessibleInterval<? extends RealType> target = Views.zeroMin(output);
+
+        //Runs on the executor of the calling command, see SharedExecutor
+        TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+        int numTasks = taskExecutor.suggestNumberOfTasks();
+        List<Interval> chunks = IntervalChunks.chunkInterval(source, numTasks );
+
+        taskExecutor.forEach(chunks, chunk ->{
+            Cursor<? extends RealType> looper = Views.interval(source,chunk).localizingCursor();
+            RandomAccess<? extends RealType> outLooper = target.randomAccess();
+            while(looper.hasNext()){
+                looper.fwd();
+                outLooper.setPosition(looper);
+                outLooper.get().setReal(looper.get().getRealDouble()*shellWeights[shells.getShell(looper)]);
+            }
         });
     }
 
     public static void calculateContributionImages(RandomAccessibleInterval<? extends RealType> img1, RandomAccessibleInterval<? extends RealType> img2, RandomAccessibleInterval <? extends RealType> ccImage, RandomAccessibleInterval<? extends RealType> img1contribution, RandomAccessibleInterval<? extends RealType> img2contribution, ImgFactory<? extends RealType<?>> imgFactory){
-        ExecutorService service = Executors.newCachedThreadPool();
-        FFTConvolution fdMath = new FFTConvolution(img1, ccImage, img1, imgFactory.imgFactory(new ComplexFloatType()), service);
+        CrossCorrelationFunctions ccFunctions = new CrossCorrelationFunctions(img1, imgFactory);
 
-        calculateContributionImages(img1, img2, ccImage, img1contribution, img2contribution, fdMath);
+        calculateContributionImages(img1, img2, ccImage, img1contribution, img2contribution, ccFunctions);
+        ccFunctions.clearSpectra();
     }
 
-    public static void calculateContributionImages(RandomAccessibleInterval<? extends RealType> img1, RandomAccessibleInterval<? extends RealType> img2, RandomAccessibleInterval <? extends RealType> ccImage, RandomAccessibleInterval<? extends RealType> img1contribution, RandomAccessibleInterval<? extends RealType> img2contribution, FFTConvolution fdMath){
-        fdMath.setComputeComplexConjugate(false);
-        fdMath.setImg(img2);
-        fdMath.setKernel(ccImage);
-        fdMath.setOutput(img1contribution);
-        fdMath.convolve();
+    //Image spectra come from the cache of ccFunctions, so the inputs already transformed for the correlation are not transformed again
+    public static void calculateContributionImages(RandomAccessibleInterval<? extends RealType> img1, RandomAccessibleInterval<? extends RealType> img2, RandomAccessibleInterval <? extends RealType> ccImage, RandomAccessibleInterval<? extends RealType> img1contribution, RandomAccessibleInterval<? extends RealType> img2contribution, CrossCorrelationFunctions ccFunctions){
+        Img<ComplexFloatType> ccSpectrum = ccFunctions.getKernelSpectrum(ccImage);
 
+        ccFunctions.convolveWithKernel(ccFunctions.getSpectrum(img2), ccSpectrum, false, img1contribution);
         ImgMath.compute(ImgMath.mul(img1contribution, img1)).into(img1contribution);
 
-        fdMath.setComputeComplexConjugate(true);
-        fdMath.setImg(img1);
-        fdMath.setOutput(img2contribution);
-        fdMath.convolve();
+        ccFunctions.convolveWithKernel(ccFunctions.getSpectrum(img1), ccSpectrum, true, img2contribution);
         ImgMath.compute(ImgMath.mul(img2contribution, img2)).into(img2contribution);
         //LoopBuilder.setImages(img2contribution, ImgMath.compute(ImgMath.mul(img2contribution, img2)).into(img2contribution.copy())).multiThreaded().forEachPixel((a,b) -> a.setReal(b.get()));
     }
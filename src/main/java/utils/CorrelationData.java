@@ -21,24 +21,44 @@
  */
 package utils;
 
+import net.imglib2.parallel.Parallelization;
 import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import org.apache.commons.math3.analysis.function.Gaussian;
 
-import java.util.Iterator;
-import java.util.SortedMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CorrelationData {
 
-    public SortedMap<Double, Double> oCorrMap;
-    public SortedMap<Double, Double> sCorrMap;
+    //Gaussian fit models of the zero-bounded correlograms
+    public static final String TRUNCATED_FIT = "Truncated at zero";
+    public static final String MIRRORED_FIT = "Mirrored around the peak";
+
+    public Correlogram oCorrelogram;
+    public Correlogram sCorrelogram;
 
     public nGaussian gaussians = null;
 
     //Triplets ordered in: Normalization (Height), Mean, Sigma
     protected double[] gaussFitParameters;
 
+    //Start point of the fit, e.g. the fit of the previous time-lapse frame. Null to guess it from the data
+    private double[] startPoint;
+    private boolean truncatedFit = false;
+    //Whether the fit merges close distances and weights them by their voxel counts, off to fit every distance equally
+    private boolean countWeightedFit = false;
+
     protected Double[] confidence;
     protected Double rSquared;
+    //Squared residuals and number of the observations of the fit, for the information criteria
+    private double fitResiduals;
+    private int fitObservations;
 
     public final int curveCount;
 
@@ -49,12 +69,41 @@ public class CorrelationData {
     public boolean hasConfidence(){return confidence != null;}
     public double getConfidence(int index){return confidence[index];}
     public double getRSquared(){return rSquared;}
+    public boolean hasRSquared(){return rSquared != null;}
+    public boolean hasFitParameters(){return gaussFitParameters != null;}
     public boolean hasGaussians(){return gaussians.getCount() > 0;}
+    public double[] getFitParameters(){return gaussFitParameters.clone();}
+    public void setStartPoint(double[] startPoint){this.startPoint = startPoint == null ? null : startPoint.clone();}
+    public void setFitModel(String fitModel){truncatedFit = TRUNCATED_FIT.equals(fitModel);}
+    public void setCountWeightedFit(boolean countWeightedFit){this.countWeightedFit = countWeightedFit;}
+    //Akaike and Bayesian information criteria of the fit, assuming normally distributed residuals
+    public double getAIC(){return logResidualTerm() + (2 * gaussFitParameters.length);}
+    public double getBIC(){return logResidualTerm() + (gaussFitParameters.length * Math.log(fitObservations));}
+
+    //False if the fit failed for any of the Gaussians, which then have a mean of -1
+    public boolean hasValidFit(){
+        if(gaussFitParameters == null)
+            return false;
+        for (int i = 0; i < curveCount; i++) {
+            if(getGaussianMean(i) == -1)
+                return false;
+        }
+        return true;
+    }
 
     public CorrelationData(int curveFitCount){
         curveCount = curveFitCount;
     }
 
+    //Same correlograms and fit model as profiles, to fit another number of Gaussians
+    public CorrelationData(CorrelationData profiles, int curveFitCount){
+        curveCount = curveFitCount;
+        oCorrelogram = profiles.oCorrelogram;
+        sCorrelogram = profiles.sCorrelogram;
+        truncatedFit = profiles.truncatedFit;
+        countWeightedFit = profiles.countWeightedFit;
+    }
+
     public CorrelationData(double... gaussFitParameters){
         this.gaussFitParameters = gaussFitParameters.clone();
         curveCount = gaussFitParameters.length/3;
@@ -62,17 +111,31 @@ public class CorrelationData {
     }
 
     public void fitGaussianCurve() {
-        gaussFitParameters = CurveFit(sCorrMap);
+        try {
+            gaussFitParameters = CurveFit(sCorrelogram);
+        } catch (IllegalStateException e) {
+            //reported like a failed fit, with the error values
+            gaussFitParameters = failedFit(sCorrelogram);
+            gaussians = new nGaussian(gaussFitParameters);
+            rSquared = -1.0;
+            throw e;
+        }
 
         gaussians = new nGaussian(gaussFitParameters);
 
         rSquared = calcRsquared();
 
-        if (oCorrMap != null){
-            confidence = new Double[curveCount];
+        Correlogram fitted = sCorrelogram.binned(fitBinWidth(sCorrelogram));
+        fitResiduals = Math.max(weightedResiduals(fitted, gaussFitParameters), residualFloor(fitted));
+        fitObservations = fitted.size();
+
+        if (oCorrelogram != null){
+            //only kept once every confidence is calculated
+            Double[] confidence = new Double[curveCount];
             for (int i = 0; i < curveCount; i++) {
-                confidence[i] = (areaUnderCurve(new Gaussian(getGaussianNorm(i), getGaussianMean(i),getGaussianSD(i)), sCorrMap, getGaussianMean(i), getGaussianSD(i)) / areaUnderCurve(oCorrMap, getGaussianMean(i), getGaussianSD(i)));
+                confidence[i] = (areaUnderCurve(new Gaussian(getGaussianNorm(i), getGaussianMean(i),getGaussianSD(i)), sCorrelogram, getGaussianMean(i), getGaussianSD(i)) / areaUnderCurve(oCorrelogram, getGaussianMean(i), getGaussianSD(i)));
             }
+            this.confidence = confidence;
         }
         for (int i = 0; i < curveCount; i++) {
             if(gaussFitParameters[i+1] == -1)
@@ -80,19 +143,107 @@ public class CorrelationData {
         }
     }
 
-    private double[] CurveFit(SortedMap<Double, Double> inputMap) {
+    /* Throws an IllegalStateException if the correlogram has fewer than 3 distances per Gaussian, too few to fit them, as
+     * happens with a small maximum correlogram radius or wide bins.
+     */
+    double[] CurveFit(Correlogram input) {
+        if(input.size() < 3 * curveCount)
+            throw new IllegalStateException("Fitting " + curveCount + " Gaussian(s) requires at least " + (3 * curveCount) + " distances, the correlogram has " + input.size() + ". Increase the maximum correlogram radius or decrease the bin width.");
+        double minScale = input.getDistance(1) - input.firstDistance();
+        double binWidth = fitBinWidth(input);
+
+        /*
+         * Have to check if the curve was fit to a single noise spike, something that came up quite a bit during initial testing.
+         * If so, the data is averaged with nearest neighbors and another fit is attempted. The fits for the different
+         * window sizes run on the pool of the command while the unsmoothed data is fit on this thread, and the first
+         * valid one in order of increasing window size, the unsmoothed fit first, is kept, as when they were tried one
+         * after the other. Once a fit is chosen, the later fits stop at their next iteration.
+         */
+        ExecutorService service = SharedExecutor.current();
+        AtomicBoolean chosen = new AtomicBoolean();
+        List<Future<double[]>> candidates = new ArrayList<>();
+        for (double windowSize = minScale / 10; windowSize <= (minScale / 2); windowSize += minScale / 10) {
+            double finalWindowSize = windowSize;
+            //candidates that have not started when a fit is chosen are skipped
+            candidates.add(service.submit(() -> chosen.get() ? null : fitCandidate(MovingAverage.averaged(input, finalWindowSize).binned(binWidth), null, chosen)));
+        }
+
+        //a warm start that diverges, or converges to an invalid fit, falls back to the guessed start point
+        Correlogram binned = input.binned(binWidth);
+        double[] output = startPoint == null ? null : fitCandidate(binned, startPoint);
+        if(output == null || !isValidFit(output, minScale))
+            output = fitCandidate(binned, null);
+
+        if(output != null && isValidFit(output, minScale))
+            chosen.set(true);
+        else {
+            for (Future<double[]> future : candidates) {
+                double[] candidate = getCandidate(future);
+                if(candidate == null)
+                    continue;
+                //as before, an invalid fit of the most averaged data is kept when no fit is valid
+                output = candidate;
+                if(isValidFit(candidate, minScale)) {
+                    chosen.set(true);
+                    break;
+                }
+            }
+        }
+
+        if (output == null)
+            return failedFit(input);
+
+        for (int i = 0; i < curveCount; i++) {
+            int offset = i*3;
+            if (!isValidCurve(output, offset, minScale)) {
+                output[offset] = 0;
+                output[offset+1] = -1.0;
+                output[offset+2] = input.lastDistance();
+            }
+        }
+        return output;
+    }
+
+    //Error values of a fit that failed for every Gaussian, a mean of -1
+    private double[] failedFit(Correlogram input) {
+        double[] output = new double[curveCount*3];
+        for (int j = 0; j < curveCount; j++) {
+            output[j*3] = 0;
+            output[(j*3)+1] = -1.0;
+            output[(j*3)+2] = input.isEmpty() ? 0 : input.lastDistance();
+        }
+        return output;
+    }
+
+    //Fit of a single candidate, null if the fitter failed. The start point is guessed from the data if null
+    double[] fitCandidate(Correlogram input, double[] start) {
+        return fitCandidate(input, start, null);
+    }
+
+    //As above, the optimizer stops at its next iteration once stop is set, unless it is null
+    private double[] fitCandidate(Correlogram input, double[] start, AtomicBoolean stop) {
         double maxLoc = 0;
         double max = 0;
         WeightedObservedPoints obs = new WeightedObservedPoints();
 
+        double meanCount = meanCount(input);
+
+        //the truncated model fits the zero-bounded data as it is
+        if(truncatedFit) {
+            for (int i = 0; i < input.size(); i++) {
+                obs.add(fitWeight(input, i, meanCount), input.getDistance(i), input.getValue(i));
+            }
+            return fit(nGaussianCurveFitter.createTruncated(), obs, start, stop);
+        }
+
         /*First need to determine the maximum value in order to set the weights for the fitting, and determine its
          * location for instances where the mean is close to zero (in order to mirror the data, this has to be done
          * for a good fit)
          */
-        for (Double d : inputMap.keySet()) {
-            if (inputMap.get(d) > max) {
-                maxLoc = d;
-                max = inputMap.get(d);
+        for (int i = 0; i < input.size(); i++) {
+            if (input.getValue(i) > max) {
+                maxLoc = input.getDistance(i);
+                max = input.getValue(i);
             }
         }
 
@@ -100,122 +251,214 @@ public class CorrelationData {
          * This is done for fits where the means are near zero, as this data is zero-bounded. Not mirroring the data results
          * in very poor fits for such values. We can't simply mirror across 0 as this will create a double-peak
          * for any data where the peak is near but not at zero.
-         * It would be preferable to fit the data using a truncated gaussian fitter, but I could not find any available
-         * java class that performs such a fit and my own attempts were unsuccessful.
+         * The truncated model (nGaussianCurveFitter.createTruncated) fits the data without mirroring it.
          */
-        if(maxLoc == inputMap.firstKey()){
+        if(maxLoc == input.firstDistance()){
             maxLoc = 0.0;
         }
-        double finalMaxLoc = maxLoc;
 
-        inputMap.forEach((key,value) -> {
-            obs.add(key, value);
-            if (key > 2 * finalMaxLoc) {
-                obs.add(((2 * finalMaxLoc) - key), value);
+        for (int i = 0; i < input.size(); i++) {
+            double weight = fitWeight(input, i, meanCount);
+            obs.add(weight, input.getDistance(i), input.getValue(i));
+            if (input.getDistance(i) > 2 * maxLoc) {
+                obs.add(weight, ((2 * maxLoc) - input.getDistance(i)), input.getValue(i));
             }
-        });
+        }
 
-        double [] output = null;
-        nGaussianCurveFitter curveFitter = nGaussianCurveFitter.create();
+        return fit(nGaussianCurveFitter.create(), obs, start, stop);
+    }
+
+    private double[] fit(nGaussianCurveFitter curveFitter, WeightedObservedPoints obs, double[] start, AtomicBoolean stop) {
         try{
-            output = curveFitter.withCount(curveCount).withMaxIterations(100).fit(obs.toList());
+            curveFitter = curveFitter.withCount(curveCount).withMaxIterations(100);
+            if(stop != null)
+                curveFitter = curveFitter.withConvergenceChecker((iteration, previous, current) -> stop.get());
+            return (start == null ? curveFitter : curveFitter.withStartPoint(start)).fit(obs.toList());
         }
-        catch(Exception ignored){}
-
-        /*
-         * Have to check if the curve was fit to a single noise spike, something that came up quite a bit during initial testing.
-         * If not fit to a noise spike, values are returned with no further processing, if it is, the data is averaged
-         * with nearest neighbors and another fit is attempted. This usually only needs a single round of averaging.
-         */
+        catch(Exception e){
+            return null;
+        }
+    }
 
-        Iterator<Double> keyIterator= inputMap.keySet().iterator();
-        keyIterator.next();
-        double minScale = keyIterator.next() - inputMap.firstKey();
+    private static double[] getCandidate(Future<double[]> candidate) {
+        try {
+            return candidate.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
 
+    boolean isValidFit(double[] fit, double minScale) {
         for (int i = 0; i < curveCount; i++) {
             int offset = i*3;
-            if (output == null || output[offset+2] <= minScale || output[offset+1] < -minScale || output[offset] < 0) {
-                for (double windowSize = minScale / 10; (output == null || output[offset+2] <= minScale || output[offset+1] < 0) && windowSize <= (minScale / 2); windowSize += minScale / 10) {
-                    obs.clear();
-                    SortedMap<Double, Double> averaged = MovingAverage.averagedMap(inputMap, windowSize);
-                    max = 0;
-                    maxLoc = 0;
-                    for (Double d : averaged.keySet()) {
-                        if (averaged.get(d) > max) {
-                            maxLoc = d;
-                            max = averaged.get(d);
-                        }
-                    }
-                    if (maxLoc == averaged.firstKey()) {
-                        maxLoc = 0.0;
-                    }
-                    double finalMaxLoc1 = maxLoc;
-
-                    averaged.forEach((key, value) -> {
-                        obs.add(key, value);
-                        if (key > 2 * finalMaxLoc1) {
-                            obs.add(((2 * finalMaxLoc1) - key), value);
-                        }
-                    });
-                    try {
-                        output = curveFitter.withCount(curveCount).withMaxIterations(100).fit(obs.toList());
-                    } catch (Exception ignored) {}
-                }
-            }
+            if (!isValidCurve(fit, offset, minScale))
+                return false;
+        }
+        return true;
+    }
 
-            if (output == null){
-                output = new double[curveCount*3];
-                for (int j = 0; j < curveCount; j++) {
-                    output[j*3] = 0;
-                    output[(j*3)+1] = -1.0;
-                    output[(j*3)+2] = inputMap.lastKey();
-                }
-                return output;
-            }
+    /* Rejects Gaussians narrower than the distance step, negative or not finite. The mirrored model also rejects means
+     * below zero, the truncated model fits them, down to the bound of nGaussian.Truncated, when the peak is at the origin.
+     */
+    private boolean isValidCurve(double[] fit, int offset, double minScale) {
+        for (int j = offset; j < offset + 3; j++) {
+            if (!Double.isFinite(fit[j]))
+                return false;
+        }
+        return !(fit[offset+2] <= minScale || (!truncatedFit && fit[offset+1] < -minScale) || fit[offset] < 0);
+    }
 
-            if (output[offset+2] <= minScale || output[offset+1] < -minScale || output[offset] < 0) {
-                output[offset] = 0;
-                output[offset+1] = -1.0;
-                output[offset+2] = inputMap.lastKey();
-            }
+    /* When the fit is count weighted, distances closer than this are merged before fitting, so the size of the fit
+     * follows the distance range rather than the number of distinct voxel distances, which grows quickly in 3D.
+     * Otherwise every distance is fit as it is.
+     */
+    private double fitBinWidth(Correlogram input) {
+        return countWeightedFit ? (input.getDistance(1) - input.firstDistance()) / 2 : 0;
+    }
+
+    //Weight of a distance in the fit: the number of voxels averaged into it relative to the mean count, or 1
+    private double fitWeight(Correlogram input, int i, double meanCount) {
+        return countWeightedFit ? input.getCount(i) / meanCount : 1;
+    }
+
+    private static double meanCount(Correlogram input) {
+        double meanCount = 0;
+        for (int i = 0; i < input.size(); i++) {
+            meanCount += input.getCount(i);
         }
-        return output;
+        return meanCount / input.size();
     }
 
-    private double areaUnderCurve(Gaussian gaussian, SortedMap<Double, Double> map, double mean, double sigma) {
+    private double logResidualTerm() {
+        return fitObservations * Math.log(fitResiduals / fitObservations);
+    }
+
+    /* The correlograms come from single precision correlations, so residuals below the float rounding of the values
+     * only measure rounding. The residuals are kept above it, and above zero where an exact fit would score -Infinity,
+     * so the number of parameters decides between fits that are exact to that precision.
+     */
+    private double residualFloor(Correlogram input) {
+        double maxValue = 0;
+        for (int i = 0; i < input.size(); i++) {
+            maxValue = Math.max(maxValue, Math.abs(input.getValue(i)));
+        }
+        return Math.max(input.size() * Math.pow(Math.ulp(1f) * maxValue, 2), Double.MIN_NORMAL);
+    }
+
+    //Sum of squared residuals of the fit, weighted like the fit
+    private double weightedResiduals(Correlogram input, double[] fit) {
+        nGaussian model = new nGaussian(fit);
+        double meanCount = meanCount(input);
+
+        double sum = 0;
+        for (int i = 0; i < input.size(); i++) {
+            sum += fitWeight(input, i, meanCount) * Math.pow(input.getValue(i) - model.value(input.getDistance(i)), 2);
+        }
+        return sum;
+    }
+
+    private double areaUnderCurve(Gaussian gaussian, Correlogram correlogram, double mean, double sigma) {
 
         double auc = 0;
-        for (Double d : map.keySet()) {
-            if ((mean - (3 * sigma)) < d && d < (mean + (3 * sigma))) {
-                auc += gaussian.value(d);
-            }
+        //distances strictly inside mean +/- 3 sigma
+        for (int i = correlogram.upperBound(mean - (3 * sigma)); i < correlogram.size() && correlogram.getDistance(i) < (mean + (3 * sigma)); i++) {
+            auc += gaussian.value(correlogram.getDistance(i));
         }
         return auc;
     }
 
-    private double areaUnderCurve(SortedMap<Double, Double> map, double mean, double sigma) {
+    private double areaUnderCurve(Correlogram correlogram, double mean, double sigma) {
 
         double auc = 0;
 
-        for (Double d : map.keySet()) {
-            if ((mean - (3 * sigma)) < d && d < (mean + (3 * sigma))) {
-                auc += map.get(d);
-            }
+        for (int i = correlogram.upperBound(mean - (3 * sigma)); i < correlogram.size() && correlogram.getDistance(i) < (mean + (3 * sigma)); i++) {
+            auc += correlogram.getValue(i);
         }
         return auc;
     }
 
     private double calcRsquared(){
-        final double[] residualsSum = {0};
-        final double[] totalSum = {0};
-        final double rangeMean = sCorrMap.subMap(gaussFitParameters[1] - (3 * gaussFitParameters[2]), gaussFitParameters[1] + (3 * gaussFitParameters[2])).values().stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+        double residualsSum = 0;
+        double totalSum = 0;
+        Correlogram range = sCorrelogram.subRange(gaussFitParameters[1] - (3 * gaussFitParameters[2]), gaussFitParameters[1] + (3 * gaussFitParameters[2]));
+        if(range.isEmpty())
+            throw new NoSuchElementException("No value present");
+
+        double rangeMean = 0;
+        for (int i = 0; i < range.size(); i++) {
+            rangeMean += range.getValue(i);
+        }
+        rangeMean /= range.size();
+
+        for (int i = 0; i < range.size(); i++) {
+            residualsSum += Math.pow(range.getValue(i) - gaussians.value(range.getDistance(i)), 2);
+            totalSum += Math.pow(range.getValue(i) - rangeMean, 2);
+        }
+        return (1-(residualsSum/totalSum));
+    }
 
-        sCorrMap.subMap(gaussFitParameters[1] - (3 * gaussFitParameters[2]), gaussFitParameters[1] + (3 * gaussFitParameters[2])).forEach((key, value) -> {
-            residualsSum[0] += Math.pow(value - gaussians.value(key), 2);
-            totalSum[0] += Math.pow(value - rangeMean, 2);
+    /** Fits every number of Gaussians from 1 to maxCount to the correlograms of profiles at the same time, and selects
+     * the valid fit with the lowest AIC, or BIC. On a tie the smaller number of Gaussians is kept. The selection has no
+     * selected fit if none of the fits is valid.
+     */
+    public static GaussianCountSelection selectGaussianCount(CorrelationData profiles, int maxCount, boolean useBIC){
+        List<CorrelationData> candidates = new ArrayList<>();
+        for (int count = 1; count <= maxCount; count++) {
+            candidates.add(new CorrelationData(profiles, count));
+        }
+        Parallelization.getTaskExecutor().forEach(candidates, candidate -> {
+            try {
+                candidate.fitGaussianCurve();
+            } catch (RuntimeException ignored) {
+                //failed fits are not selected
+            }
         });
-        return (1-(residualsSum[0]/totalSum[0]));
+
+        CorrelationData selected = null;
+        for (CorrelationData candidate : candidates) {
+            if(candidate.hasValidFit() && (selected == null || (useBIC ? candidate.getBIC() < selected.getBIC() : candidate.getAIC() < selected.getAIC())))
+                selected = candidate;
+        }
+        return new GaussianCountSelection(candidates, selected, useBIC);
     }
 
+    /** Fits of every number of Gaussians compared by {@link #selectGaussianCount(CorrelationData, int, boolean)}, in
+     * increasing number of Gaussians, and the selected one.
+     */
+    public static class GaussianCountSelection {
+        public final List<CorrelationData> candidates;
+        public final CorrelationData selected;
+        public final boolean useBIC;
+
+        GaussianCountSelection(List<CorrelationData> candidates, CorrelationData selected, boolean useBIC){
+            this.candidates = candidates;
+            this.selected = selected;
+            this.useBIC = useBIC;
+        }
+
+        public boolean hasSelection(){return selected != null;}
 
+        public String getCriterion(){return useBIC ? "BIC" : "AIC";}
+
+        /** One row per number of Gaussians with its AIC, BIC and R-squared, NaN (-1 for R-squared) for failed fits,
+         * and whether it was selected (1) or not (0).
+         */
+        public List<LinkedHashMap<String, Double>> getRows(int significantDigits){
+            List<LinkedHashMap<String, Double>> rows = new ArrayList<>();
+            for (CorrelationData candidate : candidates) {
+                LinkedHashMap<String, Double> row = new LinkedHashMap<>();
+                boolean valid = candidate.hasValidFit();
+                row.put("Gaussians", (double) candidate.curveCount);
+                row.put("AIC", valid ? SignificantDigits.round(candidate.getAIC(), significantDigits) : Double.NaN);
+                row.put("BIC", valid ? SignificantDigits.round(candidate.getBIC(), significantDigits) : Double.NaN);
+                row.put("R-squared", valid ? SignificantDigits.round(candidate.getRSquared(), significantDigits) : -1.0);
+                row.put("Selected", candidate == selected ? 1.0 : 0.0);
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
 }
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/** Radial profile of a correlation image: distances in increasing order, the mean correlation at each distance and
+ * the number of voxels averaged into it. Slices share the arrays of the correlogram they are taken from.
+ */
+public class Correlogram {
+
+    private final double[] distances;
+    private final double[] values;
+    private final long[] counts;
+    //range of the arrays covered by this correlogram
+    private final int from, to;
+
+    public Correlogram(double[] distances, double[] values, long[] counts){
+        this(distances, values, counts, 0, distances.length);
+    }
+
+    private Correlogram(double[] distances, double[] values, long[] counts, int from, int to){
+        this.distances = distances;
+        this.values = values;
+        this.counts = counts;
+        this.from = from;
+        this.to = to;
+    }
+
+    public int size(){
+        return to - from;
+    }
+
+    public boolean isEmpty(){
+        return to == from;
+    }
+
+    public double getDistance(int index){
+        return distances[from + index];
+    }
+
+    public double getValue(int index){
+        return values[from + index];
+    }
+
+    public long getCount(int index){
+        return counts[from + index];
+    }
+
+    public double firstDistance(){
+        return getDistance(0);
+    }
+
+    public double lastDistance(){
+        return getDistance(size() - 1);
+    }
+
+    //Index of the first distance >= distance, size() if there is none
+    public int lowerBound(double distance){
+        int low = from, high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if(distances[middle] < distance)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low - from;
+    }
+
+    //Index of the first distance > distance, size() if there is none
+    public int upperBound(double distance){
+        int low = from, high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if(distances[middle] <= distance)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low - from;
+    }
+
+    /** Entries fromIndex (inclusive) to toIndex (exclusive), without copying. */
+    public Correlogram slice(int fromIndex, int toIndex){
+        return new Correlogram(distances, values, counts, from + fromIndex, from + toIndex);
+    }
+
+    /** Entries with fromDistance <= distance < toDistance, without copying. */
+    public Correlogram subRange(double fromDistance, double toDistance){
+        return slice(lowerBound(fromDistance), Math.max(lowerBound(fromDistance), lowerBound(toDistance)));
+    }
+
+    /** Merges the entries into bins of the given width, starting at distance 0. Each bin has the count-weighted mean
+     * distance and value of its entries, and their summed count. Widths <= 0 return this correlogram.
+     */
+    public Correlogram binned(double width){
+        if(width <= 0 || isEmpty())
+            return this;
+        double[] binDistances = new double[size()];
+        double[] binValues = new double[size()];
+        long[] binCounts = new long[size()];
+        int binCount = 0;
+        for (int first = 0, last; first < size(); first = last, binCount++) {
+            long bin = (long) Math.floor(getDistance(first) / width);
+            double distanceSum = 0, valueSum = 0;
+            long count = 0;
+            for (last = first; last < size() && (long) Math.floor(getDistance(last) / width) == bin; last++) {
+                distanceSum += getDistance(last) * getCount(last);
+                valueSum += getValue(last) * getCount(last);
+                count += getCount(last);
+            }
+            //a single entry is kept exactly
+            binDistances[binCount] = last - first == 1 ? getDistance(first) : distanceSum / count;
+            binValues[binCount] = last - first == 1 ? getValue(first) : valueSum / count;
+            binCounts[binCount] = count;
+        }
+        return new Correlogram(binDistances, binValues, binCounts).slice(0, binCount);
+    }
+
+    public double[] getDistances(){
+        return Arrays.copyOfRange(distances, from, to);
+    }
+
+    public double[] getValues(){
+        return Arrays.copyOfRange(values, from, to);
+    }
+
+    //Boxed copies, for the plots
+    public List<Double> distanceList(){
+        return Arrays.stream(distances, from, to).boxed().collect(Collectors.toList());
+    }
+
+    public List<Double> valueList(){
+        return Arrays.stream(values, from, to).boxed().collect(Collectors.toList());
+    }
+}
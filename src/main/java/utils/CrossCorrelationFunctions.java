@@ -22,39 +22,231 @@
 package utils;
 
 import net.imglib2.*;
-import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 
 public class CrossCorrelationFunctions<R extends RealType<R>, F extends FloatType> {
 
-    private FFTConvolution fdMath;
     protected AveragedMask averagedMaskImg1;
     private double maskVolume;
     private double [] scale;
+    private double maxCorrelationDistance;
+
+    private RandomAccessibleInterval<FloatType> img1, img2;
+
+    private ExecutorService service;
+    private ImgFactory<ComplexFloatType> fftFactory;
+    private ImgFactory<FloatType> realFactory;
+
+    //Every input is zero-padded into the same interval, so that any two spectra can be multiplied together
+    private long[] paddedDimensions;
+    private long[] spectrumDimensions;
+    private Interval paddedInterval;
+    //Maps the circular correlation result back to the layout of the input image, zero shift at the image center
+    private Interval shiftInterval;
+
+    //Forward transforms of the current frame, each input is only transformed once
+    private final Map<RandomAccessibleInterval<?>, Img<ComplexFloatType>> spectrumCache = new IdentityHashMap<>();
+    //Spectrum buffers released by clearSpectra, reused by the forward transforms of the next frame
+    private final Deque<Img<ComplexFloatType>> spectrumPool = new ArrayDeque<>();
+    //Transform of the mask itself, kept across frames by setFrame when the mask does not change
+    private Img<ComplexFloatType> maskSpectrum;
+    private boolean algebraicSubtraction = false;
+    //Correlations are computed in the spatial domain when that needs fewer operations than the FFTs, see DirectCorrelation
+    private boolean directCorrelation = false;
+    //Out-of-core mode, the correlations and contributions are computed tile by tile
+    private TiledCorrelation tiledCorrelation;
+    private Img<ComplexFloatType> productWorkspace;
+    private Img<FloatType> inverseWorkspace;
+    //Copy with its own workspaces for getCCViewInSecondWorkspace, kept across frames
+    private CrossCorrelationFunctions<R, F> secondWorkspace;
+    //Chosen by calibrateBackend on the first transform, unless set with setFFTBackend
+    private FFTBackend fftBackend;
+    //Fastest backend found for each padded size, shared by all instances so a size is only calibrated once
+    private static final Map<List<Long>, FFTBackend> calibratedBackends = new ConcurrentHashMap<>();
+    //Lines of each padded length timed by the calibration, a fast size for both backends
+    private static final int CALIBRATION_LINES = 16;
 
     public CrossCorrelationFunctions(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval <FloatType> img2, double [] inputScale, ImgFactory<R> imgFactory){
-        ExecutorService service = Executors.newCachedThreadPool();
+        this(img1, img2, inputScale, 0, imgFactory);
+    }
+
+    public CrossCorrelationFunctions(RandomAccessibleInterval <FloatType> img1, RandomAccessibleInterval <FloatType> img2, double [] inputScale, double maxCorrelationDistance, ImgFactory<R> imgFactory){
         scale = inputScale.clone();
         maskVolume = 1;
-        fdMath = new FFTConvolution(extendImage(img1), img1, extendImage(img2), img2, imgFactory.imgFactory(new ComplexFloatType()), service);
+        this.maxCorrelationDistance = maxCorrelationDistance;
+        this.img1 = img1;
+        this.img2 = img2;
+        initializeTransforms(img1, getCorrelationDimensions(img1, inputScale, maxCorrelationDistance), imgFactory);
+        directCorrelation = useDirectCorrelation(img1);
     }
 
     public CrossCorrelationFunctions(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, double [] inputScale, ImgFactory<R> imgFactory){
-        ExecutorService service = Executors.newCachedThreadPool();
+        this(img1, img2, mask, inputScale, 0, imgFactory);
+    }
+
+    /** Only the shifts up to maxCorrelationDistance (in calibrated units) are calculated, see
+     * {@link #getCorrelationDimension(long, double, double)}. The FFTs are then only padded by that shift instead of
+     * the full image size.
+     */
+    public CrossCorrelationFunctions(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, double [] inputScale, double maxCorrelationDistance, ImgFactory<R> imgFactory){
         averagedMaskImg1 = new AveragedMask(img1, mask);
         scale = inputScale.clone();
         maskVolume = averagedMaskImg1.getMaskVoxelCount()*getVoxelVolume(inputScale);
-        fdMath = new FFTConvolution(extendImage(img1), img1, extendImage(img2), img2, imgFactory.imgFactory(new ComplexFloatType()), service);
+        this.maxCorrelationDistance = maxCorrelationDistance;
+        this.img1 = img1;
+        this.img2 = img2;
+        initializeTransforms(img1, getCorrelationDimensions(img1, inputScale, maxCorrelationDistance), imgFactory);
+        directCorrelation = useDirectCorrelation(img1);
+    }
+
+    //Only a maximum correlation distance limits the shifts enough for the direct correlation to be considered
+    private boolean useDirectCorrelation(Interval image){
+        return !Intervals.equalDimensions(shiftInterval, image) && DirectCorrelation.isCheaperThanFFT(image, shiftInterval, paddedDimensions);
+    }
+
+    //Shares everything but the FFT workspaces, see withOwnWorkspaces
+    private CrossCorrelationFunctions(CrossCorrelationFunctions<R, F> shared){
+        share(shared);
+    }
+
+    //Takes the frame, geometry and cached spectra of shared, the FFT workspaces of this instance are kept
+    private void share(CrossCorrelationFunctions<R, F> shared){
+        averagedMaskImg1 = shared.averagedMaskImg1;
+        maskVolume = shared.maskVolume;
+        scale = shared.scale;
+        maxCorrelationDistance = shared.maxCorrelationDistance;
+        img1 = shared.img1;
+        img2 = shared.img2;
+        service = shared.service;
+        fftFactory = shared.fftFactory;
+        realFactory = shared.realFactory;
+        paddedDimensions = shared.paddedDimensions;
+        spectrumDimensions = shared.spectrumDimensions;
+        paddedInterval = shared.paddedInterval;
+        shiftInterval = shared.shiftInterval;
+        spectrumCache.clear();
+        spectrumCache.putAll(shared.spectrumCache);
+        maskSpectrum = shared.maskSpectrum;
+        algebraicSubtraction = shared.algebraicSubtraction;
+        directCorrelation = shared.directCorrelation;
+        tiledCorrelation = shared.tiledCorrelation;
+        fftBackend = shared.fftBackend;
+    }
+
+    //Used when only contribution images are needed, e.g. from a user-supplied cross-correlation image
+    public CrossCorrelationFunctions(Interval imageInterval, ImgFactory<? extends RealType<?>> imgFactory){
+        maskVolume = 1;
+        initializeTransforms(imageInterval, imageInterval.dimensionsAsLongArray(), imgFactory);
+    }
+
+    /** Size of the correlation image along one axis when shifts are limited to maxDistance (in calibrated units).
+     * The correlation then covers shifts from -s to s pixels, with s = ceil(maxDistance/scale). A maxDistance of 0 or
+     * less, or one that reaches beyond half of the image, gives the full image size.
+     */
+    public static long getCorrelationDimension(long imageDimension, double scale, double maxDistance){
+        if(maxDistance <= 0)
+            return imageDimension;
+        long maxShift = (long) Math.ceil(maxDistance/scale);
+        return Math.min(imageDimension, (2*maxShift)+1);
+    }
+
+    public static long[] getCorrelationDimensions(Dimensions image, double [] scale, double maxDistance){
+        long[] dimensions = new long[image.numDimensions()];
+        for (int d = 0; d < dimensions.length; d++) {
+            dimensions[d] = getCorrelationDimension(image.dimension(d), scale[d], maxDistance);
+        }
+        return dimensions;
+    }
+
+    //Dimensions of the correlation images written by this instance, zero shift is at the center
+    public long[] getCorrelationDimensions(){
+        return shiftInterval.dimensionsAsLongArray();
+    }
+
+    private void initializeTransforms(Interval imageInterval, long[] correlationDimensions, ImgFactory<?> imgFactory){
+        service = SharedExecutor.current();
+        fftFactory = imgFactory.imgFactory(new ComplexFloatType());
+        realFactory = imgFactory.imgFactory(new FloatType());
+
+        //Same padding FFTConvolution uses for an image and kernel of equal size, so no shift wraps around.
+        //When the shifts are limited to s pixels, padding by s is enough for both the correlation and the kernel convolution
+        int nDims = imageInterval.numDimensions();
+        long[] minimumDimensions = new long[nDims];
+        long[] shiftMin = new long[nDims];
+        long[] shiftMax = new long[nDims];
+        for (int d = 0; d < nDims; d++) {
+            long imageDimension = imageInterval.dimension(d);
+            if(correlationDimensions[d] < imageDimension) {
+                minimumDimensions[d] = imageDimension + (correlationDimensions[d] / 2);
+                shiftMin[d] = -(correlationDimensions[d] / 2);
+            }
+            else {
+                minimumDimensions[d] = (2 * imageDimension) - 1;
+                shiftMin[d] = -(imageDimension / 2);
+            }
+            shiftMax[d] = shiftMin[d] + Math.min(correlationDimensions[d], imageDimension) - 1;
+        }
+        paddedDimensions = new long[nDims];
+        spectrumDimensions = new long[nDims];
+        FFTMethods.dimensionsRealToComplexFast(FinalDimensions.wrap(minimumDimensions), paddedDimensions, spectrumDimensions);
+        paddedInterval = FFTMethods.paddingIntervalCentered(imageInterval, FinalDimensions.wrap(paddedDimensions));
+        shiftInterval = new FinalInterval(shiftMin, shiftMax);
+    }
+
+    /** Moves a time-lapse analysis to its next frame. The padded geometry, the FFT workspaces and the spectrum buffers
+     * of the previous frame are kept, so frames of the same size do not allocate new ones. The mask count and
+     * spectrum are only recomputed when the mask changed, the mean under the mask is recomputed every frame.
+     */
+    public void setFrame(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, boolean maskChanged){
+        setImages(img1, img2);
+        if(maskChanged || averagedMaskImg1 == null){
+            averagedMaskImg1 = new AveragedMask(img1, mask);
+            maskVolume = averagedMaskImg1.getMaskVoxelCount()*getVoxelVolume(scale);
+            if(maskSpectrum != null)
+                spectrumPool.push(maskSpectrum);
+            maskSpectrum = null;
+        }
+        else{
+            averagedMaskImg1.updateSum(img1, mask);
+        }
+    }
+
+    //Same as setFrame, without a mask
+    void setImages(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2){
+        clearSpectra();
+        this.img1 = img1;
+        this.img2 = img2;
+    }
+
+    /** Computes the correlations and contribution images tile by tile, so that the FFT buffers stay within heapBudget
+     * bytes whatever the image size. Needs a maximum correlation distance that is smaller than the image, returns
+     * false and keeps the whole-image FFTs otherwise.
+     */
+    public boolean setOutOfCore(long heapBudget){
+        if(Intervals.equalDimensions(shiftInterval, img1))
+            return false;
+        tiledCorrelation = new TiledCorrelation(img1, scale, maxCorrelationDistance, heapBudget);
+        return true;
     }
 
     public void calculateCC(RandomAccessibleInterval<F> output){
@@ -62,19 +254,16 @@ public class CrossCorrelationFunctions<R extends RealType<R>, F extends FloatTyp
         //OutOfBoundsFactory zeroBounds = new OutOfBoundsConstantValueFactory<>(0.0);
         //ops.filter().correlate(oCorr, img1, img2, img1.dimensionsAsLongArray(), zeroBounds, zeroBounds);
 
-        fdMath.setComputeComplexConjugate(true);
-        fdMath.setOutput(output);
-        fdMath.convolve();
-        LoopBuilder.setImages(output).multiThreaded().forEachPixel((out) -> out.setReal(out.get()/maskVolume));
+        calculateCC(img1, img2, output);
     }
 
-    public void calculateCC(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<FloatType> output){
-        fdMath.setComputeComplexConjugate(true);
-        fdMath.setImg(extendImage(img1), img1);
-        fdMath.setKernel(extendImage(img2), img2);
-        fdMath.setOutput(output);
-        fdMath.convolve();
-        LoopBuilder.setImages(output).multiThreaded().forEachPixel((out) -> out.setReal(out.get()/maskVolume));
+    public void calculateCC(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<? extends RealType<?>> output){
+        if(tiledCorrelation != null)
+            tiledCorrelation.correlate(img1, img2, maskVolume, output);
+        else if(directCorrelation)
+            DirectCorrelation.correlate(img1, img2, shiftInterval, maskVolume, output);
+        else
+            correlate(getSpectrum(img1), getSpectrum(img2), output);
     }
 
     /**Start creating average correlation of Pixel Randomization data. The zeroed data outside the mask is unaltered
@@ -86,15 +275,96 @@ public class CrossCorrelationFunctions<R extends RealType<R>, F extends FloatTyp
      */
 
     public void generateSubtractedCCImage(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, Img <FloatType> output, ImgFactory<FloatType> floatTypeImgFactory){
+        if(tiledCorrelation != null || directCorrelation){
+            calculateCC(subtractMean(img1, averagedMaskImg1.getMeanUnderMask(), mask), img2, output);
+            return;
+        }
+        if(algebraicSubtraction){
+            calculateSubtractedCC(img1, averagedMaskImg1.getMeanUnderMask(), img2, mask, output);
+            return;
+        }
+
         Img<FloatType> lowFreqComp = averagedMaskImg1.getMaskMeanSubtractedImage(img1, mask, floatTypeImgFactory);
 
-        fdMath.setKernel(extendImage(img2), img2);
-        fdMath.setComputeComplexConjugate(true);
-        fdMath.setOutput(output);
-        fdMath.setImg(extendImage(lowFreqComp), img1);
-        fdMath.convolve();
+        //the mean-subtracted image is only used once, so it is not added to the cache
+        correlate(forwardTransform(lowFreqComp), getSpectrum(img2), output);
+    }
 
-        LoopBuilder.setImages(output).multiThreaded().forEachPixel((out) -> out.setReal(out.get()/maskVolume));
+    /** Cross-correlation of (img1 - meanUnderMask1) inside the mask with img2, for any pair of images masked by
+     * the mask of this instance. With the FFT, the spectra of img1, img2 and the mask are cached, so correlating many
+     * pairs of images only transforms each image once.
+     */
+    public void calculateSubtractedCC(RandomAccessibleInterval<FloatType> img1, double meanUnderMask1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask, RandomAccessibleInterval<FloatType> output){
+        if(tiledCorrelation != null || directCorrelation){
+            calculateCC(subtractMean(img1, meanUnderMask1, mask), img2, output);
+            return;
+        }
+        //Correlation is linear: CC(img1 - mean*mask, img2) = CC(img1, img2) - mean*CC(mask, img2)
+        //img1 is zero outside the mask, so the subtracted spectrum is built from the cached spectra alone
+        writeCorrelation(correlateCircular(getSpectrum(img1), getMaskSpectrum(mask), meanUnderMask1, getSpectrum(img2)), output);
+    }
+
+    /** Same values as {@link #calculateCC(RandomAccessibleInterval)}, as a view of the inverse transform that is
+     * normalized as it is read, so no correlation image is written. The view is only valid until the next correlation
+     * or contribution of this instance. The tiled and direct correlations have no inverse transform, so their result
+     * is written to a new image.
+     */
+    public RandomAccessibleInterval<FloatType> getCCView(){
+        return getCCView(img1, img2);
+    }
+
+    public RandomAccessibleInterval<FloatType> getCCView(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2){
+        if(tiledCorrelation != null || directCorrelation){
+            Img<FloatType> output = realFactory.create(getCorrelationDimensions());
+            calculateCC(img1, img2, output);
+            return output;
+        }
+        return correlationView(correlateCircular(getSpectrum(img1), getSpectrum(img2)));
+    }
+
+    /** Same as {@link #getCCView()}, computed in a second set of FFT workspaces. The view stays valid alongside a view
+     * of the subtracted correlation, so both can be profiled in a single traversal. Spectra cached by this instance
+     * are reused, so computing the subtracted view first avoids transforming the images twice.
+     */
+    public RandomAccessibleInterval<FloatType> getCCViewInSecondWorkspace(){
+        return getCCViewInSecondWorkspace(img1, img2);
+    }
+
+    public RandomAccessibleInterval<FloatType> getCCViewInSecondWorkspace(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2){
+        if(secondWorkspace == null)
+            secondWorkspace = withOwnWorkspaces();
+        else
+            secondWorkspace.share(this);
+        return secondWorkspace.getCCView(img1, img2);
+    }
+
+    /** View of the subtracted correlation, see {@link #getCCView()}. With {@link #setAlgebraicSubtraction(boolean)}
+     * it is derived from the cached spectra, Image 1 must then be zero outside the mask. Otherwise the mean-subtracted
+     * Image 1 is transformed, without being written or cached.
+     */
+    public RandomAccessibleInterval<FloatType> getSubtractedCCView(RandomAccessibleInterval<FloatType> img1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask){
+        return getSubtractedCCView(img1, averagedMaskImg1.getMeanUnderMask(), img2, mask);
+    }
+
+    public RandomAccessibleInterval<FloatType> getSubtractedCCView(RandomAccessibleInterval<FloatType> img1, double meanUnderMask1, RandomAccessibleInterval<FloatType> img2, RandomAccessibleInterval<R> mask){
+        if(tiledCorrelation != null || directCorrelation){
+            Img<FloatType> output = realFactory.create(getCorrelationDimensions());
+            calculateSubtractedCC(img1, meanUnderMask1, img2, mask, output);
+            return output;
+        }
+        if(algebraicSubtraction)
+            return correlationView(correlateCircular(getSpectrum(img1), getMaskSpectrum(mask), meanUnderMask1, getSpectrum(img2)));
+
+        //the spectrum of the mean-subtracted image is only used once, its buffer goes back to the pool
+        Img<ComplexFloatType> subtractedSpectrum = forwardTransform(subtractMean(img1, meanUnderMask1, mask));
+        RandomAccessibleInterval<FloatType> view = correlationView(correlateCircular(subtractedSpectrum, getSpectrum(img2)));
+        spectrumPool.push(subtractedSpectrum);
+        return view;
+    }
+
+    //img1 - meanUnderMask1 inside the mask, zero outside, computed as it is read
+    private RandomAccessibleInterval<FloatType> subtractMean(RandomAccessibleInterval<FloatType> img1, double meanUnderMask1, RandomAccessibleInterval<R> mask){
+        return Converters.convert(img1, mask, (i, m, o) -> o.setReal(m.getRealDouble() != 0.0 ? i.getRealDouble() - meanUnderMask1 : 0), new FloatType());
     }
 
     public void generateGaussianModifiedCCImage(RandomAccessibleInterval<R> ccImage, RandomAccessibleInterval <R> output, CorrelationData  correlationData){
@@ -102,12 +372,220 @@ public class CrossCorrelationFunctions<R extends RealType<R>, F extends FloatTyp
     }
 
     public void calculateContributionImages(RandomAccessibleInterval<? extends RealType> img1, RandomAccessibleInterval<? extends RealType> img2, RandomAccessibleInterval <? extends FloatType> ccImage, RandomAccessibleInterval<? extends RealType> img1contribution, RandomAccessibleInterval<? extends RealType> img2contribution){
-        Contributions.calculateContributionImages(img1, img2, ccImage, img1contribution, img2contribution, fdMath);
+        if(tiledCorrelation != null)
+            tiledCorrelation.calculateContributionImages(img1, img2, ccImage, img1contribution, img2contribution);
+        else
+            Contributions.calculateContributionImages(img1, img2, ccImage, img1contribution, img2contribution, this);
+    }
+
+    /** Returns the forward transform of the input, computing it only the first time a given image is requested.
+     * Call {@link #clearSpectra()} once the images are no longer in use.
+     */
+    public Img<ComplexFloatType> getSpectrum(RandomAccessibleInterval<?> input){
+        return spectrumCache.computeIfAbsent(input, this::forwardTransform);
+    }
+
+    /** Transforms the images and the mask up front, so that copies made by {@link #withOwnWorkspaces()} find every
+     * spectrum they correlate in the cache. Does nothing when the correlations do not use the FFT.
+     */
+    public void cacheSpectra(List<? extends RandomAccessibleInterval<FloatType>> images, RandomAccessibleInterval<R> mask){
+        if(tiledCorrelation != null || directCorrelation)
+            return;
+        for (RandomAccessibleInterval<FloatType> image : images) {
+            getSpectrum(image);
+        }
+        getMaskSpectrum(mask);
+    }
+
+    /** Copy that reads the cached spectra of this instance with its own product and inverse workspaces, so several
+     * pairs of cached images can be correlated at the same time, one copy per thread. Spectra that are not cached
+     * yet are transformed into the cache of the copy only.
+     */
+    public CrossCorrelationFunctions<R, F> withOwnWorkspaces(){
+        return new CrossCorrelationFunctions<>(this);
     }
 
-    //made this to quickly and easily test different extension methods for correlation
-    private RandomAccessible extendImage(RandomAccessibleInterval<FloatType> in){
-        return Views.extendZero(in);
+    /** Bytes of the FFT workspaces of one correlation, the complex product and the real inverse transform. Every copy
+     * made by {@link #withOwnWorkspaces()}, and its second workspace, allocate their own.
+     */
+    public long getWorkspaceBytes(){
+        return (2L * Float.BYTES * Intervals.numElements(spectrumDimensions)) + ((long) Float.BYTES * Intervals.numElements(paddedDimensions));
+    }
+
+    //The released buffers are kept for the next frame
+    public void clearSpectra(){
+        spectrumPool.addAll(spectrumCache.values());
+        spectrumCache.clear();
+    }
+
+    /** When enabled, the subtracted correlation is derived from the spectra of Image 1, Image 2 and the mask instead
+     * of correlating a mean-subtracted copy of Image 1. Requires Image 1 to be zero outside the mask.
+     */
+    public void setAlgebraicSubtraction(boolean algebraicSubtraction){
+        this.algebraicSubtraction = algebraicSubtraction;
+    }
+
+    private Img<ComplexFloatType> getMaskSpectrum(RandomAccessibleInterval<R> mask){
+        if(maskSpectrum == null)
+            maskSpectrum = forwardTransform(Converters.convert(mask, (m, i) -> i.setReal(m.getRealDouble() != 0.0 ? 1 : 0), new FloatType()));
+        return maskSpectrum;
+    }
+
+    //Kernels are centered in their interval, and are not cached as they are usually generated for a single use
+    Img<ComplexFloatType> getKernelSpectrum(RandomAccessibleInterval<?> kernel){
+        return kernelTransform(kernel);
+    }
+
+    //convolves (or correlates, with conjugate) an image spectrum with a kernel spectrum, output in image coordinates
+    void convolveWithKernel(Img<ComplexFloatType> imgSpectrum, Img<ComplexFloatType> kernelSpectrum, boolean conjugate, RandomAccessibleInterval<? extends RealType<?>> output){
+        RandomAccessibleInterval<FloatType> result = inverse(multiply(imgSpectrum, kernelSpectrum, conjugate));
+        RandomAccessibleInterval<FloatType> inImageCoordinates = Views.interval(Views.translate(result, paddedInterval.minAsLongArray()), output);
+        LoopBuilder.setImages(inImageCoordinates, output).multiThreaded().forEachPixel((r, out) -> out.setReal(r.getRealDouble()));
+    }
+
+    private void correlate(Img<ComplexFloatType> spectrum1, Img<ComplexFloatType> spectrum2, RandomAccessibleInterval<? extends RealType<?>> output){
+        writeCorrelation(correlateCircular(spectrum1, spectrum2), output);
+    }
+
+    private RandomAccessibleInterval<FloatType> correlateCircular(Img<ComplexFloatType> spectrum1, Img<ComplexFloatType> spectrum2){
+        return inverse(multiply(spectrum1, spectrum2, true));
+    }
+
+    private void writeCorrelation(RandomAccessibleInterval<FloatType> circular, RandomAccessibleInterval<? extends RealType<?>> output){
+        LoopBuilder.setImages(correlationView(circular), output).multiThreaded().forEachPixel((c, out) -> out.setReal(c.getRealDouble()));
+    }
+
+    //Crops the circular correlation to the shifts of the output, zero shift at the center, and normalizes it as it is read
+    private RandomAccessibleInterval<FloatType> correlationView(RandomAccessibleInterval<FloatType> circular){
+        RandomAccessibleInterval<FloatType> centered = Views.zeroMin(Views.interval(Views.extendPeriodic(circular), shiftInterval));
+        final double volume = maskVolume;
+        return Converters.convert(centered, (c, out) -> out.setReal(c.getRealDouble()/volume), new FloatType());
+    }
+
+    //correlates (spectrum1 - factor*maskSpectrum) with spectrum2, without storing the combined spectrum
+    private RandomAccessibleInterval<FloatType> correlateCircular(Img<ComplexFloatType> spectrum1, Img<ComplexFloatType> maskSpectrum, double factor, Img<ComplexFloatType> spectrum2){
+        if(productWorkspace == null)
+            productWorkspace = fftFactory.create(spectrum1);
+        final float f = (float) factor;
+        LoopBuilder.setImages(productWorkspace, spectrum1, maskSpectrum, spectrum2).multiThreaded().forEachPixel((p, a, m, b) -> {
+            final float ar = a.getRealFloat() - (f * m.getRealFloat()), ai = a.getImaginaryFloat() - (f * m.getImaginaryFloat());
+            final float br = b.getRealFloat(), bi = -b.getImaginaryFloat();
+            p.set((ar * br) - (ai * bi), (ar * bi) + (ai * br));
+        });
+        return inverse(productWorkspace);
+    }
+
+    private Img<ComplexFloatType> multiply(Img<ComplexFloatType> spectrum1, Img<ComplexFloatType> spectrum2, boolean conjugate){
+        if(productWorkspace == null)
+            productWorkspace = fftFactory.create(spectrum1);
+        LoopBuilder.setImages(productWorkspace, spectrum1, spectrum2).multiThreaded().forEachPixel((p, a, b) -> {
+            final float ar = a.getRealFloat(), ai = a.getImaginaryFloat();
+            final float br = b.getRealFloat(), bi = conjugate ? -b.getImaginaryFloat() : b.getImaginaryFloat();
+            p.set((ar * br) - (ai * bi), (ar * bi) + (ai * br));
+        });
+        return productWorkspace;
+    }
+
+    //the complex input is overwritten
+    private RandomAccessibleInterval<FloatType> inverse(Img<ComplexFloatType> product){
+        if(inverseWorkspace == null)
+            inverseWorkspace = realFactory.create(paddedDimensions);
+        fftBackend.complexToReal(product, inverseWorkspace, service);
+        return inverseWorkspace;
+    }
+
+    private Img<ComplexFloatType> forwardTransform(RandomAccessibleInterval<?> input){
+        Img<ComplexFloatType> spectrum = spectrumPool.isEmpty() ? fftFactory.create(spectrumDimensions) : spectrumPool.pop();
+        transform(Views.interval(Views.extendZero((RandomAccessibleInterval) input), paddedInterval), spectrum);
+        return spectrum;
+    }
+
+    private void transform(RandomAccessibleInterval<? extends RealType<?>> padded, Img<ComplexFloatType> spectrum){
+        if(fftBackend == null)
+            fftBackend = calibrateBackend(padded, spectrum);
+        else
+            fftBackend.realToComplex(padded, spectrum, service);
+    }
+
+    /** Returns the fastest backend for this padded size, calibrated the first time the size is used, and transforms
+     * the input with it.
+     */
+    private FFTBackend calibrateBackend(RandomAccessibleInterval<? extends RealType<?>> padded, Img<ComplexFloatType> spectrum){
+        List<Long> key = Arrays.stream(paddedDimensions).boxed().collect(Collectors.toList());
+        FFTBackend fastest = calibratedBackends.computeIfAbsent(key, k -> fastestBackend());
+        fastest.realToComplex(padded, spectrum, service);
+        return fastest;
+    }
+
+    /** Times the forward and inverse transform of each backend on a block of about CALIBRATION_LINES lines of each
+     * padded length, rather than on the whole padded image. The time of the full transforms is estimated from the
+     * number of lines along each dimension.
+     */
+    private FFTBackend fastestBackend(){
+        double realLines = Intervals.numElements(paddedDimensions);
+        double complexLines = Intervals.numElements(spectrumDimensions);
+        FFTBackend fastest = null;
+        double fastestTime = Double.POSITIVE_INFINITY;
+        for (FFTBackend backend : FFTBackend.getBackends()) {
+            //A small transform first, so that class loading and compilation are not timed
+            timeBlock(backend, CALIBRATION_LINES, CALIBRATION_LINES, true);
+            double time = 0;
+            for (int d = 0; d < paddedDimensions.length; d++) {
+                //The first dimension holds the real lines, the others are transformed along the second dimension of
+                //the block, over the complex lines of its spectrum
+                if(d == 0)
+                    time += timeBlock(backend, paddedDimensions[d], CALIBRATION_LINES, true) * (realLines / paddedDimensions[d]);
+                else
+                    time += timeBlock(backend, CALIBRATION_LINES, paddedDimensions[d], false) * (complexLines / spectrumDimensions[d]);
+            }
+            if(time < fastestTime){
+                fastest = backend;
+                fastestTime = time;
+            }
+        }
+        return fastest;
+    }
+
+    /* Nanoseconds taken by the forward and inverse transform of a two-dimensional block, per real line (along the
+     * first dimension) or per complex line (along the second dimension, one per value of the first dimension of the
+     * spectrum)
+     */
+    private double timeBlock(FFTBackend backend, long realLength, long lines, boolean perRealLine){
+        long[] blockDimensions = new long[2];
+        long[] blockSpectrumDimensions = new long[2];
+        FFTMethods.dimensionsRealToComplexFast(new FinalDimensions(realLength, lines), blockDimensions, blockSpectrumDimensions);
+        Img<FloatType> block = realFactory.create(blockDimensions);
+        Img<ComplexFloatType> blockSpectrum = fftFactory.create(blockSpectrumDimensions);
+        LoopBuilder.setImages(block).forEachPixel(FloatType::setOne);
+        long start = System.nanoTime();
+        backend.realToComplex(block, blockSpectrum, service);
+        backend.complexToReal(blockSpectrum, block, service);
+        long time = System.nanoTime() - start;
+        return (double) time / (perRealLine ? blockDimensions[1] : blockSpectrumDimensions[0]);
+    }
+
+    /** Uses the given backend for all the transforms of this instance instead of calibrating. */
+    public void setFFTBackend(FFTBackend fftBackend){
+        this.fftBackend = fftBackend;
+    }
+
+    public FFTBackend getFFTBackend(){
+        return fftBackend;
+    }
+
+    //Kernels are wrapped so that their center sits at the origin, as done by FFTConvolution
+    private Img<ComplexFloatType> kernelTransform(RandomAccessibleInterval<?> kernel){
+        Interval kernelPadding = FFTMethods.paddingIntervalCentered(kernel, FinalDimensions.wrap(paddedDimensions));
+        long[] min = new long[kernel.numDimensions()];
+        long[] max = new long[kernel.numDimensions()];
+        for (int d = 0; d < kernel.numDimensions(); d++) {
+            min[d] = kernel.min(d) + (kernel.dimension(d) / 2);
+            max[d] = min[d] + kernelPadding.dimension(d) - 1;
+        }
+        RandomAccessibleInterval wrappedKernel = Views.interval(Views.extendPeriodic(Views.interval(Views.extendZero((RandomAccessibleInterval) kernel), kernelPadding)), new FinalInterval(min, max));
+        Img<ComplexFloatType> spectrum = fftFactory.create(spectrumDimensions);
+        transform(wrappedKernel, spectrum);
+        return spectrum;
     }
 
     private double getVoxelVolume(double [] scale){
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.IntervalChunks;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+/** Cross-correlation computed directly in the spatial domain, only for the shifts of the output image. It gives the
+ * same result and layout as the FFT correlation of {@link CrossCorrelationFunctions}, and is faster when only a few
+ * shifts are needed, e.g. with a small maximum correlation distance.
+ */
+public class DirectCorrelation {
+
+    //Approximate operations per voxel and per log2(voxels) of one real-to-complex FFT
+    private static final double FFT_COST_FACTOR = 2.5;
+
+    /** Compares the operations of the direct correlation (one multiply-add per voxel and shift) with those of the
+     * FFT correlation (two forward and one inverse transform of the padded image, plus the spectrum product).
+     */
+    public static boolean isCheaperThanFFT(Dimensions image, Dimensions correlation, long[] paddedDimensions){
+        double directCost = 2.0 * Intervals.numElements(image) * Intervals.numElements(correlation);
+        double paddedSize = Intervals.numElements(paddedDimensions);
+        double fftCost = (3 * FFT_COST_FACTOR * paddedSize * (Math.log(paddedSize) / Math.log(2))) + (6 * paddedSize);
+        return directCost < fftCost;
+    }
+
+    /** Writes the correlation of img1 and img2 to the output, for the shifts in shiftInterval (output position 0 is
+     * shiftInterval.min). Each value is the sum of img1(x + shift)*img2(x), divided by normalization. The shifts are
+     * divided between the threads of the calling command.
+     */
+    public static void correlate(RandomAccessibleInterval<? extends RealType<?>> img1, RandomAccessibleInterval<? extends RealType<?>> img2, Interval shiftInterval, double normalization, RandomAccessibleInterval<? extends RealType<?>> output){
+        RandomAccessibleInterval<? extends RealType<?>> source1 = Views.zeroMin(img1);
+        RandomAccessibleInterval<? extends RealType<?>> source2 = Views.zeroMin(img2);
+        RandomAccessibleInterval<? extends RealType<?>> target = Views.zeroMin(output);
+        int nDims = source1.numDimensions();
+
+        //Runs on the executor of the calling command, see SharedExecutor
+        TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+        List<Interval> chunks = IntervalChunks.chunkInterval(target, taskExecutor.suggestNumberOfTasks());
+
+        taskExecutor.forEach(chunks, chunk -> {
+            Cursor<? extends RealType<?>> looper = Views.interval(target, chunk).localizingCursor();
+            long[] shift = new long[nDims];
+            long[] min = new long[nDims];
+            long[] max = new long[nDims];
+            while (looper.hasNext()) {
+                looper.fwd();
+                //region of img2 that overlaps img1 after the shift
+                boolean overlaps = true;
+                for (int d = 0; d < nDims; d++) {
+                    shift[d] = looper.getLongPosition(d) + shiftInterval.min(d);
+                    min[d] = Math.max(0, -shift[d]);
+                    max[d] = Math.min(source2.dimension(d), source1.dimension(d) - shift[d]) - 1;
+                    overlaps &= min[d] <= max[d];
+                }
+                looper.get().setReal(overlaps ? sumOfProducts(source1, source2, shift, new FinalInterval(min, max))/normalization : 0);
+            }
+        });
+    }
+
+    private static double sumOfProducts(RandomAccessibleInterval<? extends RealType<?>> source1, RandomAccessibleInterval<? extends RealType<?>> source2, long[] shift, Interval overlap){
+        Cursor<? extends RealType<?>> cursor1 = Views.flatIterable(Views.interval(Views.translate(source1, negate(shift)), overlap)).cursor();
+        Cursor<? extends RealType<?>> cursor2 = Views.flatIterable(Views.interval(source2, overlap)).cursor();
+        double sum = 0;
+        while (cursor2.hasNext()) {
+            sum += cursor1.next().getRealDouble() * cursor2.next().getRealDouble();
+        }
+        return sum;
+    }
+
+    private static long[] negate(long[] values){
+        long[] negated = new long[values.length];
+        for (int d = 0; d < values.length; d++) {
+            negated[d] = -values[d];
+        }
+        return negated;
+    }
+}
@@ -32,6 +32,16 @@ public class ErrorChecking {
         }
     }
 
+    //Fixed and log-spaced bins need a positive width or growth, exact shells ignore it
+    public static void binningCheck(String binning, double binWidth){
+        if(binning == null || binning.equals(RadialProfiler.EXACT_BINNING))
+            return;
+        if(!(binWidth > 0)){
+            String name = binning.equals(RadialProfiler.LOG_BINNING) ? "bin growth" : "bin width";
+            throw new IllegalArgumentException(binning + " binning requires a " + name + " > 0, got " + binWidth);
+        }
+    }
+
     public static void multiChannelErrorCheck(Dataset... setOfChecks){
         for (Dataset check: setOfChecks){
             if(check.getChannels() > 1){
@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/** Real-to-complex FFT used by {@link CrossCorrelationFunctions}. All backends use the spectrum layout of imglib2:
+ * the first dimension holds the non-redundant half of the spectrum, the inverse transform is normalized.
+ */
+public interface FFTBackend {
+
+    String getName();
+
+    /** Transforms the input (already padded) into the spectrum. */
+    void realToComplex(RandomAccessibleInterval<? extends RealType<?>> input, RandomAccessibleInterval<ComplexFloatType> output, ExecutorService service);
+
+    /** Inverse transform of the spectrum into the output, which has the padded dimensions. The spectrum is overwritten. */
+    void complexToReal(RandomAccessibleInterval<ComplexFloatType> input, RandomAccessibleInterval<FloatType> output, ExecutorService service);
+
+    //Backends timed by the calibration of CrossCorrelationFunctions
+    static List<FFTBackend> getBackends(){
+        return Arrays.asList(new ImgLib2FFTBackend(), new JTransformsFFTBackend());
+    }
+}
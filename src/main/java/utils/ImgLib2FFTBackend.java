@@ -0,0 +1,49 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.concurrent.ExecutorService;
+
+/** FFT of imglib2-algorithm, which transforms one dimension at a time with the Mines JTK FFT. */
+public class ImgLib2FFTBackend implements FFTBackend {
+
+    @Override
+    public String getName() {
+        return "ImgLib2";
+    }
+
+    @Override
+    public void realToComplex(RandomAccessibleInterval<? extends RealType<?>> input, RandomAccessibleInterval<ComplexFloatType> output, ExecutorService service) {
+        FFT.realToComplex((RandomAccessibleInterval) input, output, service);
+    }
+
+    @Override
+    public void complexToReal(RandomAccessibleInterval<ComplexFloatType> input, RandomAccessibleInterval<FloatType> output, ExecutorService service) {
+        FFT.complexToRealUnpad(input, output, service);
+    }
+}
@@ -0,0 +1,165 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.loops.IntervalChunks;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.jtransforms.fft.FloatFFT_1D;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** FFT of JTransforms, which handles any length with mixed-radix and Bluestein transforms. Each dimension is
+ * transformed line by line, with the lines divided between the threads of the given executor so the thread limit of
+ * the command applies. The global thread setting of JTransforms is left as it is, so only lines longer than its
+ * threshold (8192 values) may also be split between the threads of its own pool.
+ */
+public class JTransformsFFTBackend implements FFTBackend {
+
+    @Override
+    public String getName() {
+        return "JTransforms";
+    }
+
+    @Override
+    public void realToComplex(RandomAccessibleInterval<? extends RealType<?>> input, RandomAccessibleInterval<ComplexFloatType> output, ExecutorService service) {
+        RandomAccessibleInterval<? extends RealType<?>> source = Views.zeroMin(input);
+        RandomAccessibleInterval<ComplexFloatType> target = Views.zeroMin(output);
+        final int realLength = (int) source.dimension(0);
+        final int complexLength = (int) target.dimension(0);
+
+        //Real lines of the first dimension, only the first complexLength values of the full spectrum are kept
+        forEachLine(target, 0, service, () -> {
+            FloatFFT_1D fft = new FloatFFT_1D(realLength);
+            float[] line = new float[2 * realLength];
+            RandomAccess<? extends RealType<?>> in = source.randomAccess();
+            RandomAccess<ComplexFloatType> out = target.randomAccess();
+            return position -> {
+                in.setPosition(position);
+                for (int i = 0; i < realLength; i++, in.fwd(0)) {
+                    line[i] = in.get().getRealFloat();
+                }
+                fft.realForwardFull(line);
+                out.setPosition(position);
+                for (int i = 0; i < complexLength; i++, out.fwd(0)) {
+                    out.get().set(line[2 * i], line[(2 * i) + 1]);
+                }
+            };
+        });
+        for (int d = 1; d < target.numDimensions(); d++) {
+            transformComplexLines(target, d, true, service);
+        }
+    }
+
+    @Override
+    public void complexToReal(RandomAccessibleInterval<ComplexFloatType> input, RandomAccessibleInterval<FloatType> output, ExecutorService service) {
+        RandomAccessibleInterval<ComplexFloatType> source = Views.zeroMin(input);
+        RandomAccessibleInterval<FloatType> target = Views.zeroMin(output);
+        for (int d = 1; d < source.numDimensions(); d++) {
+            transformComplexLines(source, d, false, service);
+        }
+        final int realLength = (int) target.dimension(0);
+        final int complexLength = (int) source.dimension(0);
+
+        //The missing half of each line is the complex conjugate of the stored half
+        forEachLine(target, 0, service, () -> {
+            FloatFFT_1D fft = new FloatFFT_1D(realLength);
+            float[] line = new float[2 * realLength];
+            RandomAccess<ComplexFloatType> in = source.randomAccess();
+            RandomAccess<FloatType> out = target.randomAccess();
+            return position -> {
+                in.setPosition(position);
+                for (int i = 0; i < complexLength; i++, in.fwd(0)) {
+                    line[2 * i] = in.get().getRealFloat();
+                    line[(2 * i) + 1] = in.get().getImaginaryFloat();
+                }
+                for (int i = complexLength; i < realLength; i++) {
+                    line[2 * i] = line[2 * (realLength - i)];
+                    line[(2 * i) + 1] = -line[(2 * (realLength - i)) + 1];
+                }
+                fft.complexInverse(line, true);
+                out.setPosition(position);
+                for (int i = 0; i < realLength; i++, out.fwd(0)) {
+                    out.get().set(line[2 * i]);
+                }
+            };
+        });
+    }
+
+    //In-place complex transform of all the lines along one dimension
+    private static void transformComplexLines(RandomAccessibleInterval<ComplexFloatType> spectrum, int dim, boolean forward, ExecutorService service){
+        final int length = (int) spectrum.dimension(dim);
+        forEachLine(spectrum, dim, service, () -> {
+            FloatFFT_1D fft = new FloatFFT_1D(length);
+            float[] line = new float[2 * length];
+            RandomAccess<ComplexFloatType> access = spectrum.randomAccess();
+            return position -> {
+                access.setPosition(position);
+                for (int i = 0; i < length; i++, access.fwd(dim)) {
+                    line[2 * i] = access.get().getRealFloat();
+                    line[(2 * i) + 1] = access.get().getImaginaryFloat();
+                }
+                if(forward)
+                    fft.complexForward(line);
+                else
+                    fft.complexInverse(line, true);
+                access.setPosition(position);
+                for (int i = 0; i < length; i++, access.fwd(dim)) {
+                    access.get().set(line[2 * i], line[(2 * i) + 1]);
+                }
+            };
+        });
+    }
+
+    /** Runs a line operation for the start of every line along dim. The lines are split in chunks, each chunk gets its
+     * own operation from the supplier, so the FFT plans and buffers are not shared between threads.
+     */
+    private static void forEachLine(Interval interval, int dim, ExecutorService service, Supplier<Consumer<long[]>> operations){
+        long[] max = interval.maxAsLongArray();
+        max[dim] = interval.min(dim);
+        Interval lineStarts = new FinalInterval(interval.minAsLongArray(), max);
+        TaskExecutor taskExecutor = TaskExecutors.forExecutorService(service);
+        List<Interval> chunks = IntervalChunks.chunkInterval(lineStarts, taskExecutor.suggestNumberOfTasks());
+        taskExecutor.forEach(chunks, chunk -> {
+            Consumer<long[]> operation = operations.get();
+            LocalizingIntervalIterator starts = new LocalizingIntervalIterator(chunk);
+            long[] position = new long[interval.numDimensions()];
+            while (starts.hasNext()) {
+                starts.fwd();
+                starts.localize(position);
+                operation.accept(position);
+            }
+        });
+    }
+}
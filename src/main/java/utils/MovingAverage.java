@@ -21,19 +21,45 @@
  */
 package utils;
 
-import java.util.*;
-
 public class MovingAverage {
 
-    public static SortedMap<Double,Double> averagedMap(SortedMap<Double,Double> hashMap, Double range) {
-        SortedMap<Double, Double> output = Collections.synchronizedSortedMap(new TreeMap<>());
-        hashMap.entrySet().parallelStream().forEach((entry) -> {
-            Double fromKey = entry.getKey() - range;
-            Double toKey = entry.getKey() + range;
-            Double newkey = hashMap.subMap(fromKey, toKey).keySet().stream().mapToDouble(Double::doubleValue).average().getAsDouble();
-            Double newvalue = hashMap.subMap(fromKey, toKey).values().stream().mapToDouble(Double::doubleValue).average().getAsDouble();
-            synchronized (output){output.put(newkey, newvalue);}
-        });
-        return output;
+    /** Replaces each entry by the mean distance and mean value of the entries within [distance - range, distance + range).
+     * Entries whose averaged distances coincide are merged into one. The windows only move forward along the sorted
+     * distances, so they are found with two pointers and summed from prefix sums, in linear time.
+     */
+    public static Correlogram averaged(Correlogram correlogram, double range) {
+        int size = correlogram.size();
+        double[] distanceSums = new double[size + 1];
+        double[] valueSums = new double[size + 1];
+        long[] countSums = new long[size + 1];
+        for (int i = 0; i < size; i++) {
+            distanceSums[i + 1] = distanceSums[i] + correlogram.getDistance(i);
+            valueSums[i + 1] = valueSums[i] + correlogram.getValue(i);
+            countSums[i + 1] = countSums[i] + correlogram.getCount(i);
+        }
+
+        double[] distances = new double[size];
+        double[] values = new double[size];
+        long[] counts = new long[size];
+        int outputSize = 0;
+        //window of entry i is [first, last)
+        int first = 0, last = 0;
+        for (int i = 0; i < size; i++) {
+            while (correlogram.getDistance(first) < correlogram.getDistance(i) - range) {
+                first++;
+            }
+            while (last < size && correlogram.getDistance(last) < correlogram.getDistance(i) + range) {
+                last++;
+            }
+            int windowSize = last - first;
+            double distance = (distanceSums[last] - distanceSums[first]) / windowSize;
+            if(outputSize > 0 && distances[outputSize - 1] == distance)
+                outputSize--;
+            distances[outputSize] = distance;
+            values[outputSize] = (valueSums[last] - valueSums[first]) / windowSize;
+            counts[outputSize] = countSums[last] - countSums[first];
+            outputSize++;
+        }
+        return new Correlogram(distances, values, counts).slice(0, outputSize);
     }
 }
@@ -22,6 +22,7 @@
 package utils;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.loops.IntervalChunks;
@@ -43,6 +44,12 @@ public class RadialProfiler {
 
     private double[] scale;
 
+    public static final String EXACT_BINNING = "Exact shells", FIXED_WIDTH_BINNING = "Fixed width", LOG_BINNING = "Log-spaced";
+
+    private String binning = EXACT_BINNING;
+    private double binWidth;
+    private double maxRadius;
+
     public RadialProfiler(RandomAccessibleInterval input, double[] inputScale) throws Exception {
         this.initializeToImageDimensions(input, inputScale);
         correlationData = new CorrelationData();
@@ -66,66 +73,180 @@ public class RadialProfiler {
         //BDscale = BigDecimal.valueOf(inputScale[0]).scale() + 3;
     }
 
-    public void calculateOCorrProfile(RandomAccessibleInterval origCorrelation) {
-        correlationData.oCorrMap = new TreeMap<>();
+    /** Groups the distances of the profiles: exact shells keeps every distinct distance, fixed width uses bins of
+     * width calibrated units, log-spaced uses bins that grow by a factor of (1 + width). Each bin is reported at the
+     * mean distance of its voxels. Throws an IllegalArgumentException if the width of fixed or log-spaced bins is not
+     * positive, see {@link ErrorChecking#binningCheck(String, double)}.
+     */
+    public void setBinning(String binning, double width){
+        ErrorChecking.binningCheck(binning, width);
+        this.binning = binning == null ? EXACT_BINNING : binning;
+        this.binWidth = width;
+    }
 
-        calculateSingleProfile(origCorrelation, correlationData.oCorrMap);
+    /** Only profiles the distances up to maxRadius (calibrated units). Only the box around the center that holds
+     * them is scanned, so every reported shell is complete. 0 or less profiles the whole image.
+     */
+    public void setMaxRadius(double maxRadius){
+        this.maxRadius = maxRadius;
     }
 
-    public void calculateSCorrProfile(RandomAccessibleInterval subtractedCorrelation) {
-        correlationData.sCorrMap = new TreeMap<>();
+    public void calculateOCorrProfile(RandomAccessibleInterval origCorrelation) {
+        correlationData.oCorrelogram = calculateProfiles(origCorrelation)[0];
+    }
 
-        calculateSingleProfile(subtractedCorrelation, correlationData.sCorrMap);
+    public void calculateSCorrProfile(RandomAccessibleInterval subtractedCorrelation) {
+        correlationData.sCorrelogram = calculateProfiles(subtractedCorrelation)[0];
     }
 
     public void calculateBothProfiles(RandomAccessibleInterval origCorrelation, RandomAccessibleInterval subtractedCorrelation) {
-        correlationData.oCorrMap = new TreeMap<>();
-        correlationData.sCorrMap = new TreeMap<>();
-
-        calculateSingleProfile(origCorrelation, correlationData.oCorrMap);
-        calculateSingleProfile(subtractedCorrelation, correlationData.sCorrMap);
+        //both images are binned in the same traversal, so each voxel's shell is only looked up once
+        Correlogram[] profiles = calculateProfiles(origCorrelation, subtractedCorrelation);
+        correlationData.oCorrelogram = profiles[0];
+        correlationData.sCorrelogram = profiles[1];
     }
 
-    private <T extends RealType> void calculateSingleProfile(RandomAccessibleInterval<T> input, Map<Double, Double> output) {
-        //obtain center of image
-        double[] center = new double[nDims];
-        for (int i = 0; i < nDims; i++) {
-            center[i] = (((double) dimensions[i])-1.0) / 2;
+    //Profiles images of the same dimensions, in the order of the inputs. The profiles share their distances and counts
+    private Correlogram[] calculateProfiles(RandomAccessibleInterval<? extends RealType>... inputs) {
+        //distances are measured from the center of the correlation, which is smaller than the image when shifts are
+        //limited to a maximum distance
+        Interval radiusInterval = maxRadius > 0 ? getRadiusInterval(inputs[0]) : Views.zeroMin(inputs[0]);
+        List<RandomAccessibleInterval<? extends RealType>> sources = new ArrayList<>();
+        for (RandomAccessibleInterval<? extends RealType> input : inputs) {
+            sources.add(Views.zeroMin(Views.interval(Views.zeroMin(input), radiusInterval)));
+        }
+        //the radius box is centered on the image center, so it has the same shells up to the radius
+        ShellIndex shells = ShellIndex.get(sources.get(0), scale);
+        int shellCount = shells.getShellCount();
+        while (maxRadius > 0 && shellCount > 0 && shells.getDistance(shellCount - 1) > maxRadius) {
+            --shellCount;
         }
 
-        Map<Double, Double[]> tempMap = Collections.synchronizedMap(new HashMap<>());
-        //loop through all points, determine distance (scaled) and bin
-
-        Parallelization.runMultiThreaded(() -> {
-            TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
-            int numTasks = taskExecutor.suggestNumberOfTasks();
-            List<Interval> chunks = IntervalChunks.chunkInterval(input, numTasks);
-
-            taskExecutor.forEach(chunks, chunk -> {
-                Cursor<T> looper = Views.interval(input, chunk).localizingCursor();
-                while (looper.hasNext()) {
-                    looper.fwd();
-                    double LscaledSq = 0;
-                    for (int i = 0; i < nDims; ++i) {
-                        LscaledSq += Math.pow((looper.getDoublePosition(i) - center[i]) * scale[i], 2);
-                    }
-                    Double distance = Math.sqrt(LscaledSq);
-                    synchronized (tempMap) {
-                        if (tempMap.containsKey(distance)) {
-                            tempMap.get(distance)[0] += looper.get().getRealDouble();
-                            tempMap.get(distance)[1] += 1;
-                        } else {
-                            tempMap.put(distance, new Double[2]);
-                            tempMap.get(distance)[0] = looper.get().getRealDouble();
-                            tempMap.get(distance)[1] = 1.0;
-                        }
+        //Runs on the executor of the calling command, see SharedExecutor
+        TaskExecutor taskExecutor = Parallelization.getTaskExecutor();
+        List<Interval> chunks = IntervalChunks.chunkInterval(sources.get(0), taskExecutor.getParallelism());
+
+        //One chunk per thread, each sums into its own arrays of the profiled shells, merged once at the end
+        final int profiledShells = shellCount;
+        List<double[][]> chunkSums = taskExecutor.forEachApply(chunks, chunk -> {
+            double[][] sums = new double[sources.size()][profiledShells];
+            Cursor<? extends RealType> looper = Views.flatIterable(Views.interval(sources.get(0), chunk)).localizingCursor();
+            List<Cursor<? extends RealType>> others = new ArrayList<>();
+            for (int i = 1; i < sources.size(); i++) {
+                others.add(Views.flatIterable(Views.interval(sources.get(i), chunk)).cursor());
+            }
+            while (looper.hasNext()) {
+                looper.fwd();
+                int shell = shells.getShell(looper);
+                //the corners of the radius box are beyond the radius
+                if(shell >= profiledShells) {
+                    for (Cursor<? extends RealType> other : others) {
+                        other.fwd();
                     }
+                    continue;
+                }
+                sums[0][shell] += looper.get().getRealDouble();
+                for (int i = 1; i < sources.size(); i++) {
+                    sums[i][shell] += others.get(i - 1).next().getRealDouble();
                 }
-            });
+            }
+            return sums;
         });
 
-        tempMap.forEach((key,value) -> {
-            output.put(key.doubleValue(), (value[0]/value[1]));
-        });
+        //Shells are sorted by distance, so each bin is a run of consecutive shells
+        int[] shellBins = getShellBins(shells, shellCount);
+        int binCount = 0;
+        for (int shell = 0; shell < shellBins.length; shell++) {
+            if(shell == 0 || shellBins[shell] != shellBins[shell - 1])
+                binCount++;
+        }
+        double[] distances = new double[binCount];
+        long[] counts = new long[binCount];
+        double[][] values = new double[inputs.length][binCount];
+        for (int bin = 0, first = 0, last; first < shellBins.length; first = last, bin++) {
+            double distanceSum = 0;
+            for (last = first; last < shellBins.length && shellBins[last] == shellBins[first]; last++) {
+                for (double[][] sums : chunkSums) {
+                    for (int i = 0; i < inputs.length; i++) {
+                        values[i][bin] += sums[i][last];
+                    }
+                }
+                counts[bin] += shells.getCount(last);
+                distanceSum += shells.getDistance(last) * shells.getCount(last);
+            }
+            distances[bin] = last - first == 1 ? shells.getDistance(first) : distanceSum / counts[bin];
+            for (int i = 0; i < inputs.length; i++) {
+                values[i][bin] /= counts[bin];
+            }
+        }
+
+        Correlogram[] profiles = new Correlogram[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            profiles[i] = new Correlogram(distances, values[i], counts);
+        }
+        return profiles;
+    }
+
+    /** Smallest maxRadius that keeps at least 3 distances per Gaussian of the correlation data, enough to fit them. */
+    public double getMinimumFitRadius(){
+        return minimumRadius(scale, binning, binWidth, 3 * correlationData.curveCount);
+    }
+
+    /** Smallest maxRadius (calibrated units) that keeps at least distanceCount distances in a profile with this binning,
+     * counting only the distances along the finest axis, so the profile of a large enough image has at least as many.
+     */
+    public static double minimumRadius(double[] scale, String binning, double binWidth, int distanceCount){
+        double step = Double.MAX_VALUE;
+        for (double s : scale) {
+            step = Math.min(step, s);
+        }
+        if(distanceCount < 2)
+            return 0;
+        if(FIXED_WIDTH_BINNING.equals(binning) && binWidth > 0)
+            return ((distanceCount - 1) * Math.max(binWidth, step)) + step;
+        if(LOG_BINNING.equals(binning) && binWidth > 0) {
+            //zero and the first step each have their own bin, then the first multiple of the step in each next bin
+            double logGrowth = Math.log1p(binWidth);
+            double multiple = 1;
+            for (int count = 2; count < distanceCount; count++) {
+                int bin = (int) Math.floor(Math.log(multiple) / logGrowth);
+                double next = Math.max(multiple + 1, Math.ceil(Math.exp((bin + 1) * logGrowth)));
+                while (Math.floor(Math.log(next) / logGrowth) <= bin) {
+                    ++next;
+                }
+                multiple = next;
+            }
+            return multiple * step;
+        }
+        return (distanceCount - 1) * step;
+    }
+
+    //Smallest interval around the center that holds every voxel within maxRadius
+    private Interval getRadiusInterval(Interval input){
+        long[] min = new long[nDims];
+        long[] max = new long[nDims];
+        for (int d = 0; d < nDims; d++) {
+            double center = (((double) input.dimension(d)) - 1.0) / 2;
+            double radius = maxRadius / scale[d];
+            min[d] = Math.max(0, (long) Math.ceil(center - radius));
+            max[d] = Math.min(input.dimension(d) - 1, (long) Math.floor(center + radius));
+        }
+        return new FinalInterval(min, max);
+    }
+
+    private int[] getShellBins(ShellIndex shells, int shellCount){
+        int[] bins = new int[shellCount];
+        //the first non-zero distance starts the log-spaced bins, zero keeps its own bin
+        double firstDistance = shells.getDistance(0) > 0 || shells.getShellCount() == 1 ? shells.getDistance(0) : shells.getDistance(1);
+        for (int shell = 0; shell < bins.length; shell++) {
+            double distance = shells.getDistance(shell);
+            if(binning.equals(FIXED_WIDTH_BINNING))
+                bins[shell] = (int) Math.floor(distance / binWidth);
+            else if(binning.equals(LOG_BINNING))
+                bins[shell] = distance == 0 ? 0 : 1 + (int) Math.floor(Math.log(distance / firstDistance) / Math.log1p(binWidth));
+            else
+                bins[shell] = shell;
+        }
+        return bins;
     }
 }
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.parallel.TaskExecutors;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/** A single, size-bounded thread pool for one run of a command. Everything executed through {@link #run(Runnable)}
+ * (LoopBuilder, the radial profiler and the FFTs of CrossCorrelationFunctions) shares this pool, which is shut down
+ * by {@link #close()} once the command is done. The threads of the pool run with the same executor, so work
+ * submitted from a task, such as the candidate fits of a fit running in parallel, also shares the pool.
+ */
+public class SharedExecutor implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final TaskExecutor taskExecutor;
+
+    //Values <= 0, or above the number of available processors, use every available processor
+    public SharedExecutor(int numThreads){
+        int available = Runtime.getRuntime().availableProcessors();
+        int parallelism = (numThreads <= 0 || numThreads > available) ? available : numThreads;
+        pool = new ForkJoinPool(parallelism, Worker::new, null, false);
+        taskExecutor = TaskExecutors.forExecutorServiceAndNumThreads(pool, parallelism);
+    }
+
+    public int getParallelism(){
+        return taskExecutor.getParallelism();
+    }
+
+    public void run(Runnable action){
+        Parallelization.runWithExecutor(taskExecutor, action);
+    }
+
+    //The executor of the current run, also on the threads of the pool, or the common pool when called outside of run()
+    public static ExecutorService current(){
+        return Parallelization.getExecutorService();
+    }
+
+    @Override
+    public void close(){
+        pool.shutdown();
+    }
+
+    //Parallelization only keeps the executor per thread, so each thread of the pool sets it for everything it runs
+    private class Worker extends ForkJoinWorkerThread {
+        Worker(ForkJoinPool pool){
+            super(pool);
+        }
+
+        @Override
+        public void run(){
+            Parallelization.runWithExecutor(taskExecutor, super::run);
+        }
+    }
+}
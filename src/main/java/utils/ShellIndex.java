@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Dimensions;
+import net.imglib2.Localizable;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/** Maps each voxel of a correlation image to the index of its distance from the image center ("shell"). A distance
+ * only depends on the absolute offset from the center along each axis, so the distances are computed once for each
+ * combination of offsets, sorted and merged into the distinct shells. A voxel then costs a few table lookups.
+ * When there are too many combinations to tabulate, a voxel's squared distance is summed from per-axis tables and its
+ * shell is looked up in a hash table keyed by that sum.
+ */
+public class ShellIndex {
+
+    private final long[] dimensions;
+    private final double[] scale;
+    //position along an axis -> index of its absolute offset from the center
+    private final int[][] axisOffsets;
+    private final long[] strides;
+    //offset index along an axis -> squared calibrated offset from the center
+    private final double[][] axisSquares;
+    //combination of offset indices -> shell, null when there are too many combinations
+    private final int[] comboShells;
+    //squared distance -> shell, used instead of comboShells when there are too many combinations
+    private final SquaredDistanceTable squaredShells;
+    private final double[] distances;
+    private final long[] counts;
+
+    //Most recent indices, shared by the frames, profiles and contribution images of the same geometry. Softly
+    //referenced, so an index that is no longer in use can be collected
+    private static final int CACHE_SIZE = 4;
+    private static final Deque<SoftReference<ShellIndex>> cached = new ArrayDeque<>();
+
+    //Above this many offset combinations the per-combination tables would take too much memory
+    static final long MAX_TABULATED_COMBINATIONS = 1L << 24;
+
+    /** Returns the index of this geometry, only building a new one when no recent index has the same dimensions
+     * and scale.
+     */
+    public static synchronized ShellIndex get(Dimensions dims, double[] scale){
+        for (Iterator<SoftReference<ShellIndex>> iterator = cached.iterator(); iterator.hasNext();) {
+            SoftReference<ShellIndex> reference = iterator.next();
+            ShellIndex shellIndex = reference.get();
+            if(shellIndex == null)
+                iterator.remove();
+            else if(shellIndex.matches(dims, scale)){
+                iterator.remove();
+                cached.addFirst(reference);
+                return shellIndex;
+            }
+        }
+        ShellIndex shellIndex = new ShellIndex(dims, scale);
+        cached.addFirst(new SoftReference<>(shellIndex));
+        if(cached.size() > CACHE_SIZE)
+            cached.removeLast();
+        return shellIndex;
+    }
+
+    public ShellIndex(Dimensions dims, double[] scale){
+        this(dims, scale, MAX_TABULATED_COMBINATIONS);
+    }
+
+    ShellIndex(Dimensions dims, double[] scale, long maxTabulatedCombinations){
+        int nDims = dims.numDimensions();
+        this.dimensions = dims.dimensionsAsLongArray();
+        this.scale = scale.clone();
+        axisOffsets = new int[nDims][];
+        strides = new long[nDims];
+        axisSquares = new double[nDims][];
+        long[][] offsetMultiplicity = new long[nDims][];
+        long comboCount = 1;
+        for (int d = 0; d < nDims; d++) {
+            double center = (((double) dimensions[d]) - 1.0) / 2;
+            int offsetCount = (int) ((dimensions[d] - 1) / 2) + 1;
+            axisOffsets[d] = new int[(int) dimensions[d]];
+            axisSquares[d] = new double[offsetCount];
+            offsetMultiplicity[d] = new long[offsetCount];
+            for (int i = 0; i < dimensions[d]; i++) {
+                int offset = (int) Math.floor(Math.abs(i - center));
+                axisOffsets[d][i] = offset;
+                axisSquares[d][offset] = Math.pow((i - center) * scale[d], 2);
+                offsetMultiplicity[d][offset]++;
+            }
+            strides[d] = comboCount;
+            comboCount *= offsetCount;
+        }
+        if(comboCount > Math.min(maxTabulatedCombinations, Integer.MAX_VALUE)){
+            //Only the distinct squared distances are kept, with the number of voxels at each
+            SquaredDistanceTable table = new SquaredDistanceTable();
+            int[] offset = new int[nDims];
+            for (long c = 0; c < comboCount; c++) {
+                long multiplicity = 1;
+                for (int d = 0; d < nDims; d++) {
+                    multiplicity *= offsetMultiplicity[d][offset[d]];
+                }
+                table.add(squaredDistance(offset), multiplicity);
+                for (int d = 0; d < nDims && ++offset[d] == axisSquares[d].length; d++) {
+                    offset[d] = 0;
+                }
+            }
+            double[] squared = table.sortedKeys();
+            //distinct squared distances can round to the same distance, they then share a shell
+            double[] shellDistances = new double[squared.length];
+            long[] shellCounts = new long[squared.length];
+            int shellCount = 0;
+            for (double squaredDistance : squared) {
+                double distance = Math.sqrt(squaredDistance);
+                if(shellCount == 0 || distance != shellDistances[shellCount - 1])
+                    shellDistances[shellCount++] = distance;
+                shellCounts[shellCount - 1] += table.setShell(squaredDistance, shellCount - 1);
+            }
+            distances = Arrays.copyOf(shellDistances, shellCount);
+            counts = Arrays.copyOf(shellCounts, shellCount);
+            comboShells = null;
+            squaredShells = table;
+            return;
+        }
+
+        double[] comboDistances = new double[(int) comboCount];
+        long[] comboMultiplicity = new long[(int) comboCount];
+        int[] offset = new int[nDims];
+        for (int c = 0; c < comboCount; c++) {
+            long multiplicity = 1;
+            for (int d = 0; d < nDims; d++) {
+                multiplicity *= offsetMultiplicity[d][offset[d]];
+            }
+            comboDistances[c] = distance(offset);
+            comboMultiplicity[c] = multiplicity;
+            for (int d = 0; d < nDims && ++offset[d] == axisSquares[d].length; d++) {
+                offset[d] = 0;
+            }
+        }
+
+        squaredShells = null;
+        distances = Arrays.stream(comboDistances).sorted().distinct().toArray();
+        counts = new long[distances.length];
+        comboShells = new int[(int) comboCount];
+        for (int c = 0; c < comboCount; c++) {
+            comboShells[c] = Arrays.binarySearch(distances, comboDistances[c]);
+            counts[comboShells[c]] += comboMultiplicity[c];
+        }
+    }
+
+    private double distance(int[] offset){
+        return Math.sqrt(squaredDistance(offset));
+    }
+
+    //Same arithmetic for the shells and the voxels, so a voxel finds exactly the squared distance of its shell
+    private double squaredDistance(int[] offset){
+        double scaledSq = 0;
+        for (int d = 0; d < offset.length; d++) {
+            scaledSq += axisSquares[d][offset[d]];
+        }
+        return scaledSq;
+    }
+
+    /** Shell of a voxel, the position is relative to the min of the image. */
+    public int getShell(Localizable position){
+        if(comboShells == null){
+            double scaledSq = 0;
+            for (int d = 0; d < strides.length; d++) {
+                scaledSq += axisSquares[d][axisOffsets[d][position.getIntPosition(d)]];
+            }
+            return squaredShells.getShell(scaledSq);
+        }
+        long combo = 0;
+        for (int d = 0; d < strides.length; d++) {
+            combo += axisOffsets[d][position.getIntPosition(d)] * strides[d];
+        }
+        return comboShells[(int) combo];
+    }
+
+    public int getShellCount(){
+        return distances.length;
+    }
+
+    //Distance of each shell, in increasing order
+    public double getDistance(int shell){
+        return distances[shell];
+    }
+
+    //Number of voxels of the image in each shell
+    public long getCount(int shell){
+        return counts[shell];
+    }
+
+    public boolean matches(Dimensions dims, double[] scale){
+        return Arrays.equals(dimensions, dims.dimensionsAsLongArray()) && Arrays.equals(this.scale, scale);
+    }
+
+    /** Open-addressing hash table from the bits of a squared distance to a voxel count while the index is built, then
+     * to the shell of that distance. Primitive arrays, so the lookup of a voxel does not allocate.
+     */
+    private static class SquaredDistanceTable {
+
+        //Squared distances are never NaN, so the bits of this NaN mark an empty slot
+        private static final long EMPTY = -1L;
+
+        private long[] keys = newKeys(1 << 16);
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        private static long[] newKeys(int capacity){
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private int slot(long key){
+            int mask = keys.length - 1;
+            //the low bits of the keys are often zero, so the high half of the mixed key is folded in
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+            while (keys[slot] != key && keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void add(double squaredDistance, long count){
+            long key = Double.doubleToLongBits(squaredDistance);
+            int slot = slot(key);
+            if(keys[slot] == EMPTY){
+                keys[slot] = key;
+                if(++size > keys.length / 2){
+                    values[slot] = count;
+                    grow();
+                    return;
+                }
+            }
+            values[slot] += count;
+        }
+
+        private void grow(){
+            long[] oldKeys = keys, oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != EMPTY){
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        double[] sortedKeys(){
+            double[] sorted = new double[size];
+            int i = 0;
+            for (long key : keys) {
+                if(key != EMPTY)
+                    sorted[i++] = Double.longBitsToDouble(key);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        //Returns the count of the squared distance, which is replaced by its shell
+        long setShell(double squaredDistance, int shell){
+            int slot = slot(Double.doubleToLongBits(squaredDistance));
+            long count = values[slot];
+            values[slot] = shell;
+            return count;
+        }
+
+        int getShell(double squaredDistance){
+            return (int) values[slot(Double.doubleToLongBits(squaredDistance))];
+        }
+    }
+}
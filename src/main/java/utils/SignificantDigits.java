@@ -0,0 +1,38 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/** Rounding of the values reported in the result tables. */
+public class SignificantDigits {
+
+    //Values are returned as they are for 0 or fewer digits, and when infinite or NaN, which BigDecimal does not accept
+    public static double round(double input, int significantDigits){
+        if(significantDigits <= 0 || !Double.isFinite(input))
+            return input;
+        BigDecimal bd = new BigDecimal(input);
+        bd = bd.round(new MathContext(significantDigits));
+        return bd.doubleValue();
+    }
+}
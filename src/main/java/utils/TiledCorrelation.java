@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/** Correlation and contribution images computed tile by tile, for images that do not fit in memory (e.g. stored in
+ * DiskCachedCellImgs). Image 2 is split into tiles, and each tile is correlated with the part of Image 1 within the
+ * maximum shift around it. The partial correlations are then added together (overlap-add). Only the FFT buffers of
+ * a single tile are held in memory, and the tile size is chosen so that they fit in the heap budget.
+ */
+public class TiledCorrelation {
+
+    //Two forward spectra and the product (complex), plus the inverse workspace (real) of CrossCorrelationFunctions
+    private static final long BYTES_PER_PADDED_VOXEL = (3 * 8) + 4;
+
+    private final long[] imageDimensions;
+    private final long[] correlationDimensions;
+    //Tiles are extended by the maximum shift on the axes where the correlation is limited, other axes are not tiled
+    private final long[] maxShift;
+    private final long[] tileDimensions;
+    private final double[] scale;
+    private final double maxCorrelationDistance;
+
+    private CrossCorrelationFunctions<FloatType, FloatType> tileFunctions;
+
+    public TiledCorrelation(Dimensions image, double[] inputScale, double maxCorrelationDistance, long heapBudget){
+        int nDims = image.numDimensions();
+        imageDimensions = image.dimensionsAsLongArray();
+        correlationDimensions = CrossCorrelationFunctions.getCorrelationDimensions(image, inputScale, maxCorrelationDistance);
+        scale = inputScale.clone();
+        this.maxCorrelationDistance = maxCorrelationDistance;
+        maxShift = new long[nDims];
+        for (int d = 0; d < nDims; d++) {
+            maxShift[d] = correlationDimensions[d] < imageDimensions[d] ? correlationDimensions[d] / 2 : 0;
+        }
+        tileDimensions = getTileDimensions(heapBudget);
+    }
+
+    //Largest tile side, shared by the tiled axes, for which the padded FFT buffers of one tile fit in the heap budget
+    private long[] getTileDimensions(long heapBudget){
+        long tileSize = 1;
+        for (int d = 0; d < imageDimensions.length; d++) {
+            if(maxShift[d] > 0)
+                tileSize = Math.max(tileSize, imageDimensions[d]);
+        }
+        long[] tile = new long[imageDimensions.length];
+        while(true){
+            double bytes = BYTES_PER_PADDED_VOXEL;
+            for (int d = 0; d < tile.length; d++) {
+                //CrossCorrelationFunctions pads a limited axis by the shift, and an unlimited axis to twice its size
+                tile[d] = maxShift[d] > 0 ? Math.min(tileSize, imageDimensions[d]) : imageDimensions[d];
+                bytes *= maxShift[d] > 0 ? tile[d] + (3 * maxShift[d]) : (2 * tile[d]) - 1;
+            }
+            if(bytes <= heapBudget || tileSize == 1)
+                return tile;
+            tileSize = Math.max(1, (tileSize * 9) / 10);
+        }
+    }
+
+    public long[] getTileDimensions(){
+        return tileDimensions.clone();
+    }
+
+    /** Writes the correlation of img1 and img2, divided by normalization, in the layout of
+     * {@link CrossCorrelationFunctions#calculateCC(RandomAccessibleInterval, RandomAccessibleInterval, RandomAccessibleInterval)}.
+     */
+    public void correlate(RandomAccessibleInterval<? extends RealType<?>> img1, RandomAccessibleInterval<? extends RealType<?>> img2, double normalization, RandomAccessibleInterval<? extends RealType<?>> output){
+        Img<DoubleType> sum = ArrayImgs.doubles(correlationDimensions);
+        Img<FloatType> tileCorrelation = ArrayImgs.floats(correlationDimensions);
+        RandomAccessibleInterval<? extends RealType<?>> source1 = Views.zeroMin(img1);
+        RandomAccessibleInterval<? extends RealType<?>> source2 = Views.zeroMin(img2);
+
+        for (Interval tile : getTiles()) {
+            //Image 2 only inside the tile, Image 1 within the maximum shift around it
+            RandomAccessibleInterval<FloatType> tile1 = getExtendedTile(source1, tile);
+            RandomAccessibleInterval<FloatType> tile2 = getExtendedTile(Views.interval(source2, Intervals.intersect(tile, source2)), tile);
+            setTile(tile1, tile2);
+            tileFunctions.calculateCC(tile1, tile2, tileCorrelation);
+            LoopBuilder.setImages(sum, tileCorrelation).multiThreaded().forEachPixel((s, t) -> s.set(s.get() + t.getRealDouble()));
+        }
+        tileFunctions.clearSpectra();
+        LoopBuilder.setImages(sum, output).multiThreaded().forEachPixel((s, o) -> o.setReal(s.get() / normalization));
+    }
+
+    /** Contribution images of the kernel, see {@link Contributions}. Every output tile only needs the inputs within
+     * the maximum shift around it, so each tile is written once.
+     */
+    public void calculateContributionImages(RandomAccessibleInterval<? extends RealType> img1, RandomAccessibleInterval<? extends RealType> img2, RandomAccessibleInterval <? extends RealType> kernel, RandomAccessibleInterval<? extends RealType> img1contribution, RandomAccessibleInterval<? extends RealType> img2contribution){
+        RandomAccessibleInterval<? extends RealType> source1 = Views.zeroMin(img1);
+        RandomAccessibleInterval<? extends RealType> source2 = Views.zeroMin(img2);
+        RandomAccessibleInterval<? extends RealType> target1 = Views.zeroMin(img1contribution);
+        RandomAccessibleInterval<? extends RealType> target2 = Views.zeroMin(img2contribution);
+        Img<ComplexFloatType> kernelSpectrum = null;
+
+        for (Interval tile : getTiles()) {
+            RandomAccessibleInterval<FloatType> tile1 = getExtendedTile(source1, tile);
+            RandomAccessibleInterval<FloatType> tile2 = getExtendedTile(source2, tile);
+            setTile(tile1, tile2);
+            //every tile has the same padding, so the kernel is only transformed once
+            if(kernelSpectrum == null)
+                kernelSpectrum = tileFunctions.getKernelSpectrum(kernel);
+
+            //position of the part of the tile inside the image, relative to the extended tile
+            Interval clipped = Intervals.intersect(tile, source1);
+            long[] offset = Intervals.minAsLongArray(clipped);
+            for (int d = 0; d < offset.length; d++) {
+                offset[d] += maxShift[d] - tile.min(d);
+            }
+
+            RandomAccessibleInterval<? extends RealType> contribution1 = Views.interval(target1, clipped);
+            tileFunctions.convolveWithKernel(tileFunctions.getSpectrum(tile2), kernelSpectrum, false, (RandomAccessibleInterval) Views.translate(Views.zeroMin(contribution1), offset));
+            multiply(contribution1, Views.interval(source1, clipped));
+
+            RandomAccessibleInterval<? extends RealType> contribution2 = Views.interval(target2, clipped);
+            tileFunctions.convolveWithKernel(tileFunctions.getSpectrum(tile1), kernelSpectrum, true, (RandomAccessibleInterval) Views.translate(Views.zeroMin(contribution2), offset));
+            multiply(contribution2, Views.interval(source2, clipped));
+        }
+        tileFunctions.clearSpectra();
+    }
+
+    //The same CrossCorrelationFunctions, and so the same FFT buffers, is used for every tile
+    private void setTile(RandomAccessibleInterval<FloatType> tile1, RandomAccessibleInterval<FloatType> tile2){
+        if(tileFunctions == null)
+            tileFunctions = new CrossCorrelationFunctions<>(tile1, tile2, scale, maxCorrelationDistance, new ArrayImgFactory<>(new FloatType()));
+        else
+            tileFunctions.setImages(tile1, tile2);
+    }
+
+    //The input around the tile, zero outside of the input, starting at the minimum of the extended tile
+    private RandomAccessibleInterval<FloatType> getExtendedTile(RandomAccessibleInterval<? extends RealType> input, Interval tile){
+        return toFloat(Views.zeroMin(Views.interval(Views.extendZero((RandomAccessibleInterval) input), Intervals.expand(tile, maxShift))));
+    }
+
+    //Tiles all have the same size, the last tile of an axis can extend past the image
+    private Interval[] getTiles(){
+        int nDims = imageDimensions.length;
+        long[] tileCounts = new long[nDims];
+        int total = 1;
+        for (int d = 0; d < nDims; d++) {
+            tileCounts[d] = (imageDimensions[d] + tileDimensions[d] - 1) / tileDimensions[d];
+            total *= tileCounts[d];
+        }
+        Interval[] tiles = new Interval[total];
+        long[] min = new long[nDims];
+        long[] max = new long[nDims];
+        for (int i = 0; i < total; i++) {
+            long index = i;
+            for (int d = 0; d < nDims; d++) {
+                min[d] = (index % tileCounts[d]) * tileDimensions[d];
+                max[d] = min[d] + tileDimensions[d] - 1;
+                index /= tileCounts[d];
+            }
+            tiles[i] = new FinalInterval(min, max);
+        }
+        return tiles;
+    }
+
+    private static <T extends RealType> RandomAccessibleInterval<FloatType> toFloat(RandomAccessibleInterval<T> input){
+        return Converters.convert(input, (i, o) -> o.setReal(i.getRealDouble()), new FloatType());
+    }
+
+    private static <A extends RealType, B extends RealType> void multiply(RandomAccessibleInterval<A> output, RandomAccessibleInterval<B> factor){
+        LoopBuilder.setImages(output, factor).multiThreaded().forEachPixel((o, f) -> o.setReal(o.getRealDouble() * f.getRealDouble()));
+    }
+}
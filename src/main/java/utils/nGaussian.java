@@ -50,6 +50,9 @@ import org.apache.commons.math3.analysis.ParametricUnivariateFunction;
 import org.apache.commons.math3.analysis.differentiation.DerivativeStructure;
 import org.apache.commons.math3.analysis.differentiation.UnivariateDifferentiableFunction;
 import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.fitting.leastsquares.ParameterValidator;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.special.Erf;
 import org.apache.commons.math3.exception.NullArgumentException;
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.analysis.function.Gaussian;
@@ -163,20 +166,38 @@ public class nGaussian implements UnivariateDifferentiableFunction, Differentiab
             validateParameters(param);
 
             double [] gradients = new double[param.length];
+            value(x, param, gradients);
+            return gradients;
+        }
 
-            for (int i = 0; i < param.length; i += 3) {
+        /**
+         * Value at {@code x}, computed with the gradient in a single pass over the components. The gradient is
+         * written to {@code gradient} unless it is null. A collapsed Gaussian (sigma of 0) adds nothing to the value.
+         */
+        static double value(double x, double[] param, double[] gradient) {
+            double sumV = 0;
+            for (int i = 0; i + 2 < param.length; i += 3) {
                 final double norm = param[i];
                 final double diff = x - param[i+1];
                 final double sigma = param[i+2];
+                //a collapsed Gaussian has no defined gradient, a unit sigma derivative lets a fit widen it again
+                if (sigma == 0) {
+                    if (gradient != null) {
+                        gradient[i] = gradient[i+1] = 0;
+                        gradient[i+2] = 1;
+                    }
+                    continue;
+                }
                 final double i2s2 = 1 / (2 * sigma * sigma);
-
-                gradients[i] = nGaussian.value(diff, 1, i2s2); //n
-                gradients[i+1] = norm * gradients[i] * 2 * i2s2 * diff; //m
-                gradients[i+2] = gradients[i+1] * diff / sigma; //s
-                if(gradients[i+2] == 0) gradients[i+2] = 1;
+                final double exp = nGaussian.singleValue(diff, 1, i2s2);
+                sumV += norm * exp;
+                if (gradient != null) {
+                    gradient[i] = exp; //n
+                    gradient[i+1] = norm * exp * 2 * i2s2 * diff; //m
+                    gradient[i+2] = gradient[i+1] * diff / sigma; //s
+                }
             }
-
-            return gradients;
+            return sumV;
         }
 
         /**
@@ -193,28 +214,116 @@ public class nGaussian implements UnivariateDifferentiableFunction, Differentiab
 
     }
 
-    private static double value(double x, double ... param){
-        validateParameters(param);
-        double sumV = 0;
-        int nGauss = (param.length/3);
+    /**
+     * Sum of normal densities truncated at zero, for zero-bounded data such as a radial correlogram. Each triplet is
+     * ordered Mass, Mean and Standard deviation, where the mass is the area of the component above zero: the Gaussian
+     * is renormalized by its mass above zero, Phi(mean/sigma), so a component keeps its area when its mean moves
+     * towards or below zero. The value and gradient are 0 at negative {@code x}.
+     * As a {@link ParameterValidator}, it keeps masses and standard deviations positive during a fit, and the mean
+     * within 30 standard deviations below zero, where Phi(mean/sigma) is still representable.
+     */
+    public static class Truncated implements ParametricUnivariateFunction, ParameterValidator {
+        private static final double SQRT_2PI = FastMath.sqrt(2 * FastMath.PI);
+        private static final double MIN_STANDARDIZED_MEAN = -30;
 
-        double [][] pass = new double[nGauss][3];
+        public double value(double x, double ... param) {
+            return value(x, param, componentTerms(param), null);
+        }
 
-        int pAccessor = 0;
-        for (int i = 0; i < nGauss; ++i) {
-            pass[i][0] = param[pAccessor++];
-            pass[i][1] = param[pAccessor++];
-            pass[i][2] = param[pAccessor++];
+        public double[] gradient(double x, double ... param) {
+            double[] gradient = new double[param.length];
+            value(x, param, componentTerms(param), gradient);
+            return gradient;
+        }
+
+        /**
+         * Terms that only depend on the parameters, two per component: the height of the untruncated Gaussian per unit
+         * of mass, 1 / (sigma * sqrt(2 pi) * Phi(mean/sigma)), and the inverse Mills ratio phi(mean/sigma) / Phi(mean/sigma).
+         */
+        static double[] componentTerms(double[] param) {
+            double[] terms = new double[2 * (param.length / 3)];
+            for (int i = 0, t = 0; i + 2 < param.length; i += 3, t += 2) {
+                final double sigma = param[i+2];
+                final double standardizedMean = param[i+1] / sigma;
+                final double massAboveZero = 0.5 * Erf.erfc(-standardizedMean / FastMath.sqrt(2));
+                terms[t] = 1 / (sigma * SQRT_2PI * massAboveZero);
+                terms[t+1] = FastMath.exp(-standardizedMean * standardizedMean / 2) / (SQRT_2PI * massAboveZero);
+            }
+            return terms;
         }
-        try {
 
-            for (int i = 0; i < nGauss; i++) {
-                final double diff = x - pass[i][1];
-                final double i2s2 = 1 / (2 * pass[i][2] * pass[i][2]);
-                sumV += nGaussian.singleValue(diff, pass[i][0], i2s2);
+        /**
+         * Value at {@code x}, from the terms of {@link #componentTerms(double[])}. The gradient is written to
+         * {@code gradient} unless it is null.
+         */
+        static double value(double x, double[] param, double[] terms, double[] gradient) {
+            double sumV = 0;
+            for (int i = 0, t = 0; i + 2 < param.length; i += 3, t += 2) {
+                if (x < 0) {
+                    if (gradient != null) {
+                        gradient[i] = gradient[i+1] = gradient[i+2] = 0;
+                    }
+                    continue;
+                }
+                final double mass = param[i];
+                final double mean = param[i+1];
+                final double sigma = param[i+2];
+                final double diff = x - mean;
+                final double unitValue = terms[t] * FastMath.exp(-diff * diff / (2 * sigma * sigma));
+                final double value = mass * unitValue;
+                sumV += value;
+                if (gradient != null) {
+                    final double millsRatio = terms[t+1];
+                    gradient[i] = unitValue; //mass
+                    gradient[i+1] = value * ((diff / (sigma * sigma)) - (millsRatio / sigma)); //mean
+                    gradient[i+2] = value * ((diff * diff / (sigma * sigma * sigma)) - (1 / sigma) + (mean * millsRatio / (sigma * sigma))); //sigma
+                }
+            }
+            return sumV;
+        }
+
+        public RealVector validate(RealVector params) {
+            RealVector bounded = params.copy();
+            for (int i = 0; i + 2 < bounded.getDimension(); i += 3) {
+                final double sigma = FastMath.max(FastMath.abs(bounded.getEntry(i + 2)), Double.MIN_NORMAL);
+                bounded.setEntry(i, FastMath.abs(bounded.getEntry(i)));
+                bounded.setEntry(i + 1, FastMath.max(MIN_STANDARDIZED_MEAN * sigma, bounded.getEntry(i + 1)));
+                bounded.setEntry(i + 2, sigma);
+            }
+            return bounded;
+        }
+
+        /** Converts norm (height), mean and sigma triplets of Gaussians to the mass, mean and sigma of this model. */
+        public static double[] toMasses(double[] gaussianParams) {
+            double[] masses = gaussianParams.clone();
+            double[] terms = componentTerms(gaussianParams);
+            for (int i = 0, t = 0; i + 2 < masses.length; i += 3, t += 2) {
+                masses[i] = gaussianParams[i] / terms[t];
+            }
+            return masses;
+        }
+
+        /** Converts mass, mean and sigma triplets of this model to the norm (height), mean and sigma of the Gaussians
+         * with the same values at and above zero.
+         */
+        public static double[] toGaussians(double[] massParams) {
+            double[] gaussians = massParams.clone();
+            double[] terms = componentTerms(massParams);
+            for (int i = 0, t = 0; i + 2 < gaussians.length; i += 3, t += 2) {
+                gaussians[i] = massParams[i] * terms[t];
             }
-        } catch (NotStrictlyPositiveException e) { // NOPMD
-            // Do nothing.
+            return gaussians;
+        }
+    }
+
+    private static double value(double x, double ... param){
+        validateParameters(param);
+        double sumV = 0;
+
+        for (int i = 0; i + 2 < param.length; i += 3) {
+            final double diff = x - param[i+1];
+            final double i2s2 = 1 / (2 * param[i+2] * param[i+2]);
+            sumV += nGaussian.singleValue(diff, param[i], i2s2);
         }
         return sumV;
     }
@@ -48,12 +48,18 @@ import java.util.*;
 import org.apache.commons.math3.analysis.function.Gaussian;
 import org.apache.commons.math3.exception.*;
 import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.optim.ConvergenceChecker;
 import org.apache.commons.math3.fitting.AbstractCurveFitter;
-import org.apache.commons.math3.fitting.GaussianCurveFitter;
 import org.apache.commons.math3.fitting.WeightedObservedPoint;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
-import org.apache.commons.math3.linear.DiagonalMatrix;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.math3.util.Pair;
 
 /**
  * Fits points to a nGaussian.Parametric function.
@@ -89,38 +95,16 @@ import org.apache.commons.math3.linear.DiagonalMatrix;
  * @since 3.3
  */
 public class nGaussianCurveFitter extends AbstractCurveFitter {
-    /** Parametric function to be fitted. */
-    private static final nGaussian.Parametric FUNCTION = new nGaussian.Parametric() {
-        @Override
-        public double value(double x, double ... p) {
-            double v = Double.POSITIVE_INFINITY;
-            try {
-                v = super.value(x, p);
-            } catch (NotStrictlyPositiveException e) { // NOPMD
-                // Do nothing.
-            }
-            return v;
-        }
-
-        @Override
-        public double[] gradient(double x, double ... p) {
-            double[] v = { Double.POSITIVE_INFINITY,
-                    Double.POSITIVE_INFINITY,
-                    Double.POSITIVE_INFINITY };
-            try {
-                v = super.gradient(x, p);
-            } catch (NotStrictlyPositiveException e) { // NOPMD
-                // Do nothing.
-            }
-            return v;
-        }
-    };
     /** Initial guess. */
     private final double[] initialGuess;
     /** Maximum number of iterations of the optimization algorithm. */
     private final int maxIter;
 
     private final int curveCount;
+    /** Whether the data is zero-bounded and fit with the {@link nGaussian.Truncated} densities. */
+    private final boolean truncated;
+    /** Additional convergence test of the optimizer, or {@code null}. */
+    private final ConvergenceChecker<LeastSquaresProblem.Evaluation> checker;
 
     /**
      * Contructor used by the factory methods.
@@ -128,13 +112,19 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
      * @param initialGuess Initial guess. If set to {@code null}, the initial guess
      * will be estimated using the {@link ParameterGuesser}.
      * @param maxIter Maximum number of iterations of the optimization algorithm.
+     * @param truncated Whether the model is truncated at zero.
+     * @param checker Additional convergence test of the optimizer, or {@code null}.
      */
     private nGaussianCurveFitter(double[] initialGuess,
                                  int curveCount,
-                                int maxIter) {
+                                int maxIter,
+                                 boolean truncated,
+                                 ConvergenceChecker<LeastSquaresProblem.Evaluation> checker) {
         this.initialGuess = initialGuess;
         this.curveCount = curveCount;
         this.maxIter = maxIter;
+        this.truncated = truncated;
+        this.checker = checker;
     }
 
     /**
@@ -149,7 +139,21 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
      * @see #withMaxIterations(int)
      */
     public static nGaussianCurveFitter create() {
-        return new nGaussianCurveFitter(null, 1, Integer.MAX_VALUE);
+        return new nGaussianCurveFitter(null, 1, Integer.MAX_VALUE, false, null);
+    }
+
+    /**
+     * Creates a curve fitter for zero-bounded data, such as a radial correlogram.
+     * The model is the {@link nGaussian.Truncated} sum of normal densities
+     * renormalized by their mass above zero, so data peaking at or near zero is
+     * fit directly, without mirroring it. Start points and results are still
+     * norm (height), mean and sigma triplets: the fit returns the Gaussians with
+     * the same values as the fitted densities at and above zero.
+     *
+     * @return a curve fitter.
+     */
+    public static nGaussianCurveFitter createTruncated() {
+        return new nGaussianCurveFitter(null, 1, Integer.MAX_VALUE, true, null);
     }
 
     /**
@@ -160,7 +164,9 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
     public nGaussianCurveFitter withStartPoint(double[] newStart) {
         return new nGaussianCurveFitter(newStart.clone(),
                 curveCount,
-                maxIter);
+                maxIter,
+                truncated,
+                checker);
     }
 
     /**
@@ -171,7 +177,9 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
     public nGaussianCurveFitter withCount(int newCurveCount) {
         return new nGaussianCurveFitter(initialGuess,
                 newCurveCount,
-                maxIter);
+                maxIter,
+                truncated,
+                checker);
     }
 
     /**
@@ -182,27 +190,50 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
     public nGaussianCurveFitter withMaxIterations(int newMaxIter) {
         return new nGaussianCurveFitter(initialGuess,
                 curveCount,
-                newMaxIter);
+                newMaxIter,
+                truncated,
+                checker);
+    }
+
+    /**
+     * Configure an additional convergence test, checked by the optimizer
+     * after each iteration. The fit stops with the current parameters as
+     * soon as it returns true, before the optimizer's own tolerances are met.
+     * @param newChecker convergence test
+     * @return a new instance.
+     */
+    public nGaussianCurveFitter withConvergenceChecker(ConvergenceChecker<LeastSquaresProblem.Evaluation> newChecker) {
+        return new nGaussianCurveFitter(initialGuess,
+                curveCount,
+                maxIter,
+                truncated,
+                newChecker);
+    }
+
+    @Override
+    public double[] fit(Collection<WeightedObservedPoint> points) {
+        final double[] fit = super.fit(points);
+        return truncated ? nGaussian.Truncated.toGaussians(fit) : fit;
     }
 
     @Override
     protected LeastSquaresProblem getProblem(Collection<WeightedObservedPoint> observations) {
 
-        // Prepare least-squares problem.
+        // Prepare least-squares problem. The weights are applied by the model, as the square root of the weight
+        // scales both the target and the model value of each observation
         final int len = observations.size();
+        final double[] x = new double[len];
         final double[] target  = new double[len];
-        final double[] weights = new double[len];
+        final double[] sqrtWeights = new double[len];
 
         int i = 0;
         for (WeightedObservedPoint obs : observations) {
-            target[i]  = obs.getY();
-            weights[i] = obs.getWeight();
+            x[i] = obs.getX();
+            sqrtWeights[i] = FastMath.sqrt(obs.getWeight());
+            target[i]  = obs.getY() * sqrtWeights[i];
             ++i;
         }
 
-        final AbstractCurveFitter.TheoreticalValuesFunction model =
-                new AbstractCurveFitter.TheoreticalValuesFunction(FUNCTION, observations);
-
         final double[] startPoint = initialGuess != null ?
                 initialGuess :
                 // Compute estimation.
@@ -210,17 +241,65 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
 
         // Return a new least squares problem set up to fit a Gaussian curve to the
         // observed points.
-        return new LeastSquaresBuilder().
+        final LeastSquaresBuilder builder = new LeastSquaresBuilder().
                 maxEvaluations(Integer.MAX_VALUE).
                 maxIterations(maxIter).
-                start(startPoint).
                 target(target).
-                weight(new DiagonalMatrix(weights)).
-                model(model.getModelFunction(), model.getModelFunctionJacobian()).
-                build();
+                model(new Model(x, sqrtWeights, startPoint.length, truncated));
+        if (checker != null) {
+            builder.checker(checker);
+        }
+        if (truncated) {
+            final nGaussian.Truncated bounds = new nGaussian.Truncated();
+            builder.parameterValidator(bounds).
+                    start(bounds.validate(new ArrayRealVector(nGaussian.Truncated.toMasses(bounds.validate(new ArrayRealVector(startPoint)).toArray()))));
+        } else {
+            builder.start(startPoint);
+        }
+        return builder.build();
 
     }
 
+    /**
+     * Values and analytic Jacobian of the sum of Gaussians for all observations, computed in a single loop by the
+     * per-component value and gradient of {@link nGaussian.Parametric} or {@link nGaussian.Truncated}.
+     * Both are written into buffers allocated once per fit; the optimizer copies what it keeps and only
+     * reads the Jacobian of its latest evaluation, so the buffers can be reused by every evaluation.
+     * When truncated, the parameters are those of the {@link nGaussian.Truncated} densities.
+     */
+    static class Model implements MultivariateJacobianFunction {
+        private final double[] x;
+        private final double[] sqrtWeights;
+        private final double[] values;
+        private final double[][] jacobian;
+        private final boolean truncated;
+
+        Model(double[] x, double[] sqrtWeights, int parameterCount, boolean truncated) {
+            this.x = x;
+            this.sqrtWeights = sqrtWeights;
+            this.truncated = truncated;
+            values = new double[x.length];
+            jacobian = new double[x.length][parameterCount];
+        }
+
+        @Override
+        public Pair<RealVector, RealMatrix> value(RealVector point) {
+            final int parameterCount = point.getDimension();
+            final double[] param = point.toArray();
+            //the truncated terms only depend on the parameters, so they are computed once per evaluation
+            final double[] terms = truncated ? nGaussian.Truncated.componentTerms(param) : null;
+            for (int i = 0; i < x.length; i++) {
+                final double[] row = jacobian[i];
+                final double value = truncated ? nGaussian.Truncated.value(x[i], param, terms, row) : nGaussian.Parametric.value(x[i], param, row);
+                values[i] = value * sqrtWeights[i];
+                for (int j = 0; j < parameterCount; j++) {
+                    row[j] *= sqrtWeights[i];
+                }
+            }
+            return new Pair<>(new ArrayRealVector(values, false), new Array2DRowRealMatrix(jacobian, false));
+        }
+    }
+
     /**
      * Guesses the parameters norm, mean, and sigma
      * of a nGaussian.Parametric
@@ -320,7 +399,11 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
         }
 
         /**
-         * Guesses the parameters based on the specified observed points.
+         * Guesses the parameters based on the specified observed points, without
+         * any fit. Each Gaussian is placed at the highest remaining point, with
+         * its height as the norm and a standard deviation from the half width at
+         * half maximum, and is then subtracted from the points before the next
+         * Gaussian is guessed.
          *
          * @param points Observed points, sorted.
          * @return the guessed parameters (normalization factor, mean and
@@ -329,33 +412,74 @@ public class nGaussianCurveFitter extends AbstractCurveFitter {
         private double[] basicGuess(WeightedObservedPoint[] points, int curveCount) {
             double[] guess = new double[curveCount*3];
             WeightedObservedPoint[] workingList = points.clone();
+            final double range = points[points.length - 1].getX() - points[0].getX();
+            //used when the width of a peak can't be measured
+            final double defaultSigma = range > 0 ? range / (4 * curveCount) : 1;
 
             for (int i = 0; i < curveCount; ++i) {
                 int offset = i * 3;
-                double [] output = null;
-
-                try{
-                    output =  GaussianCurveFitter.create().withMaxIterations(50).fit(Arrays.asList(workingList));
+                final int maxYIdx = findMaxY(workingList);
+                final double norm = workingList[maxYIdx].getY();
+                final double mean = workingList[maxYIdx].getX();
+                double sigma = norm > 0 ? halfMaximumSigma(workingList, maxYIdx, norm) : defaultSigma;
+                if (!(sigma > 0) || Double.isInfinite(sigma)) {
+                    sigma = defaultSigma;
                 }
-                catch(TooManyIterationsException ignored){}
-
 
-                if(output != null) {
-                    guess[offset] = output[0];
-                    guess[offset + 1] = output[1];
-                    guess[offset + 2] = output[2];
-                }
-                else{
-                    guess[offset] = 0;
-                    guess[offset + 1] = 0;
-                    guess[offset + 2] = 1;
-                }
+                guess[offset] = norm > 0 ? norm : 0;
+                guess[offset + 1] = mean;
+                guess[offset + 2] = sigma;
 
-                workingList = subtractGaussian(workingList, new Gaussian(output[0],output[1],output[2]));
+                workingList = subtractGaussian(workingList, new Gaussian(guess[offset], mean, sigma));
             }
             return guess;
         }
 
+        /**
+         * Estimates the standard deviation of the peak at {@code maxYIdx} from its
+         * full width at half maximum. When the half maximum is only crossed on one
+         * side of the peak, as for zero-bounded data peaking near zero, that side's
+         * half width is used for both. When it is crossed on neither side, the
+         * second moment of the positive points about the peak is used.
+         *
+         * @param points Observed points, sorted.
+         * @param maxYIdx Index of the peak.
+         * @param norm Height of the peak.
+         * @return the estimated standard deviation, which may be 0 or NaN for
+         * degenerate points.
+         */
+        private double halfMaximumSigma(WeightedObservedPoint[] points, int maxYIdx, double norm) {
+            final double mean = points[maxYIdx].getX();
+            final double halfY = norm / 2;
+            double halfWidthLeft = Double.NaN;
+            double halfWidthRight = Double.NaN;
+            try {
+                halfWidthLeft = mean - interpolateXAtY(points, maxYIdx, -1, halfY);
+            } catch (OutOfRangeException ignored) {}
+            try {
+                halfWidthRight = interpolateXAtY(points, maxYIdx, 1, halfY) - mean;
+            } catch (OutOfRangeException ignored) {}
+
+            final double fwhm;
+            if (!Double.isNaN(halfWidthLeft) && !Double.isNaN(halfWidthRight)) {
+                fwhm = halfWidthLeft + halfWidthRight;
+            } else if (!Double.isNaN(halfWidthLeft) || !Double.isNaN(halfWidthRight)) {
+                fwhm = 2 * (Double.isNaN(halfWidthLeft) ? halfWidthRight : halfWidthLeft);
+            } else {
+                double sum = 0;
+                double squaredSum = 0;
+                for (WeightedObservedPoint point : points) {
+                    if (point.getY() > 0) {
+                        final double diff = point.getX() - mean;
+                        sum += point.getWeight() * point.getY();
+                        squaredSum += point.getWeight() * point.getY() * diff * diff;
+                    }
+                }
+                return FastMath.sqrt(squaredSum / sum);
+            }
+            return fwhm / (2 * FastMath.sqrt(2 * FastMath.log(2)));
+        }
+
         /**
          * Finds index of point in specified points with the largest Y.
          *
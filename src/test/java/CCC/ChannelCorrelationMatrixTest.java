@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package CCC;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.table.Table;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Runs the matrix on three synthetic channels: blobs, the same blobs shifted by 3 pixels, and by 5 pixels along the
+ * other axis. The matrix must be symmetric with an empty diagonal, the pair table must have the same columns for every
+ * pair, and a pair must have the values of the Colocalization_by_Cross_Correlation command run on the same two channels.
+ */
+public class ChannelCorrelationMatrixTest {
+
+    private static final long SIZE = 64;
+    private static final double SCALE = 0.1;
+
+    private Context context;
+
+    @Before
+    public void createContext() {
+        context = new Context();
+    }
+
+    @After
+    public void disposeContext() {
+        context.dispose();
+    }
+
+    @Test
+    public void matchesPairwiseCommand() {
+        Img<FloatType> channels = ArrayImgs.floats(SIZE, SIZE, 3);
+        addBlobs(channels);
+        DatasetService datasetService = context.service(DatasetService.class);
+        Dataset multiChannel = datasetService.create(new ImgPlus<>(channels, "channels", axis(Axes.X, SCALE), axis(Axes.Y, SCALE), axis(Axes.CHANNEL, 1)));
+
+        Channel_Correlation_Matrix matrix = new Channel_Correlation_Matrix();
+        context.inject(matrix);
+        matrix.dataset = multiChannel;
+        matrix.maskAbsent = true;
+        matrix.numGaussians2Fit = 1;
+        matrix.run();
+
+        for (Table table : new Table[]{matrix.meanMatrix, matrix.sdMatrix}) {
+            for (int a = 0; a < 3; a++) {
+                assertTrue(Double.isNaN(value(table, a, a)));
+                for (int b = 0; b < 3; b++) {
+                    if(a != b)
+                        assertEquals(value(table, a, b), value(table, b, a), 0);
+                }
+            }
+        }
+
+        //every pair has the same columns, in the same order
+        assertEquals(3, matrix.pairTable.getRowCount());
+        assertEquals(4, matrix.pairTable.getColumnCount());
+        assertEquals("Confidence1", matrix.pairTable.getColumnHeader(2));
+
+        Colocalization_by_Cross_Correlation pair = new Colocalization_by_Cross_Correlation();
+        context.inject(pair);
+        pair.dataset1 = channel(datasetService, channels, 0);
+        pair.dataset2 = channel(datasetService, channels, 1);
+        pair.maskAbsent = true;
+        pair.numGaussians2Fit = 1;
+        pair.run();
+
+        double mean = value(matrix.meanMatrix, 0, 1), sd = value(matrix.sdMatrix, 0, 1);
+        assertFalse(Double.isNaN(mean));
+        //the matrix subtracts the means algebraically in the frequency domain, so only rounding differs
+        assertEquals(resultValue(pair.resultsTable, "Mean1"), mean, 1e-3 * Math.abs(mean));
+        assertEquals(resultValue(pair.resultsTable, "StDev1"), sd, 1e-3 * Math.abs(sd));
+    }
+
+    //Gaussian blobs in channel 1, shifted by 3 pixels along X in channel 2 and by 5 pixels along Y in channel 3
+    private static void addBlobs(Img<FloatType> channels) {
+        Random random = new Random(11);
+        long[][] shifts = {{0, 0}, {3, 0}, {0, 5}};
+        RandomAccess<FloatType> access = channels.randomAccess();
+        for (int blob = 0; blob < 40; blob++) {
+            double x = 8 + random.nextDouble() * (SIZE - 16), y = 8 + random.nextDouble() * (SIZE - 16);
+            for (int c = 0; c < 3; c++) {
+                for (int i = 0; i < SIZE; i++) {
+                    for (int j = 0; j < SIZE; j++) {
+                        double r2 = Math.pow(i - x - shifts[c][0], 2) + Math.pow(j - y - shifts[c][1], 2);
+                        FloatType value = access.setPositionAndGet(i, j, c);
+                        value.setReal(value.getRealDouble() + Math.exp(-r2 / 8));
+                    }
+                }
+            }
+        }
+    }
+
+    private static CalibratedAxis axis(AxisType type, double scale) {
+        return new DefaultLinearAxis(type, "um", scale);
+    }
+
+    private static Dataset channel(DatasetService datasetService, Img<FloatType> channels, int c) {
+        Img<FloatType> channel = ArrayImgs.floats(SIZE, SIZE);
+        LoopBuilder.setImages(Views.hyperSlice(channels, 2, c), channel).forEachPixel((s, o) -> o.set(s));
+        return datasetService.create(new ImgPlus<>(channel, "channel " + (c + 1), axis(Axes.X, SCALE), axis(Axes.Y, SCALE)));
+    }
+
+    //Row a and column b of a channel matrix
+    private static double value(Table table, int a, int b) {
+        return ((Number) ((List<?>) table.get("Channel " + (b + 1))).get(a)).doubleValue();
+    }
+
+    //Value of the single-row result table, in the column whose header starts with name
+    private static double resultValue(Table<?, Double> table, String name) {
+        for (int column = 0; column < table.getColumnCount(); column++) {
+            if(table.getColumnHeader(column).startsWith(name))
+                return table.get(column, 0);
+        }
+        throw new AssertionError("No column " + name);
+    }
+}
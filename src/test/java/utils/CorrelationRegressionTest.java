@@ -0,0 +1,243 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Compares the correlations and radial profiles with their definitions before the FFT, correlation and profile
+ * changes: the correlation of the zero-extended images, divided by the mask volume, and the mean of the correlation
+ * at each exact voxel distance from the center.
+ */
+public class CorrelationRegressionTest {
+
+    //Relative to the largest reference value, the FFTs are single precision
+    private static final double TOLERANCE = 1e-4;
+
+    @Test
+    public void correlation2D() throws Exception {
+        checkCorrelation(new long[]{40, 36}, new double[]{0.2, 0.2}, 0, false);
+    }
+
+    @Test
+    public void maskedCorrelation2D() throws Exception {
+        checkCorrelation(new long[]{40, 36}, new double[]{0.2, 0.2}, 0, true);
+    }
+
+    @Test
+    public void correlation3D() throws Exception {
+        checkCorrelation(new long[]{24, 20, 10}, new double[]{0.1, 0.1, 0.3}, 0, false);
+    }
+
+    @Test
+    public void maskedCorrelation3D() throws Exception {
+        checkCorrelation(new long[]{24, 20, 10}, new double[]{0.1, 0.1, 0.3}, 0, true);
+    }
+
+    //Few enough shifts for the correlation in the spatial domain, see DirectCorrelation
+    @Test
+    public void maskedDirectCorrelation2D() throws Exception {
+        assertNull(checkCorrelation(new long[]{9, 8}, new double[]{0.5, 0.5}, 1.0, true).getFFTBackend());
+    }
+
+    //Without a maximum correlation distance every shift is needed, the FFTs are used however small the image
+    @Test
+    public void unlimitedCorrelationUsesFFT() throws Exception {
+        assertNotNull(checkCorrelation(new long[]{9, 8}, new double[]{0.5, 0.5}, 0, true).getFFTBackend());
+    }
+
+    private static CrossCorrelationFunctions<FloatType, FloatType> checkCorrelation(long[] dims, double[] scale, double maxCorrelationDistance, boolean masked) throws Exception {
+        Random random = new Random(42);
+        Img<FloatType> img1 = ArrayImgs.floats(dims), img2 = ArrayImgs.floats(dims), mask = ArrayImgs.floats(dims);
+        Cursor<FloatType> c1 = img1.cursor(), c2 = img2.cursor(), m = mask.cursor();
+        while (m.hasNext()) {
+            //the inputs are zero outside the mask, as in the plugins
+            boolean inside = !masked || random.nextDouble() > 0.3;
+            m.next().setReal(inside ? 1 : 0);
+            c1.next().setReal(inside ? random.nextDouble() : 0);
+            c2.next().setReal(inside ? random.nextDouble() : 0);
+        }
+
+        double maskVolume = 0, sum1 = 0;
+        for (Cursor<FloatType> i = img1.cursor(), j = mask.cursor(); j.hasNext();) {
+            double value = i.next().getRealDouble();
+            if (j.next().getRealDouble() != 0) {
+                maskVolume++;
+                sum1 += value;
+            }
+        }
+        double mean1 = sum1 / maskVolume;
+        for (double s : scale) {
+            maskVolume *= s;
+        }
+        Img<FloatType> subtracted1 = ArrayImgs.floats(dims);
+        for (Cursor<FloatType> i = img1.cursor(), j = mask.cursor(), o = subtracted1.cursor(); o.hasNext();) {
+            double value = i.next().getRealDouble();
+            o.next().setReal(j.next().getRealDouble() != 0 ? value - mean1 : 0);
+        }
+        long[] correlationDims = CrossCorrelationFunctions.getCorrelationDimensions(img1, scale, maxCorrelationDistance);
+        double[] oReference = referenceCorrelation(img1, img2, maskVolume, correlationDims);
+        double[] sReference = referenceCorrelation(subtracted1, img2, maskVolume, correlationDims);
+
+        CrossCorrelationFunctions<FloatType, FloatType> ccFunctions = new CrossCorrelationFunctions<>(img1, img2, mask, scale, maxCorrelationDistance, new ArrayImgFactory<>(new FloatType()));
+        assertArrayEquals(correlationDims, ccFunctions.getCorrelationDimensions());
+        Img<FloatType> oCorr = ArrayImgs.floats(correlationDims);
+        ccFunctions.calculateCC(oCorr);
+        assertClose(oReference, values(oCorr));
+        Img<FloatType> sCorr = ArrayImgs.floats(correlationDims);
+        ccFunctions.generateSubtractedCCImage(img1, img2, mask, sCorr, new ArrayImgFactory<>(new FloatType()));
+        assertClose(sReference, values(sCorr));
+
+        //Profiles read from the views of the inverse transforms, in a single traversal
+        RandomAccessibleInterval<FloatType> sView = ccFunctions.getSubtractedCCView(img1, img2, mask);
+        RandomAccessibleInterval<FloatType> oView = ccFunctions.getCCViewInSecondWorkspace();
+        RadialProfiler profiler = new RadialProfiler(oView, scale);
+        profiler.calculateBothProfiles(oView, sView);
+        assertProfile(referenceProfile(oReference, correlationDims, scale), profiler.correlationData.oCorrelogram);
+        assertProfile(referenceProfile(sReference, correlationDims, scale), profiler.correlationData.sCorrelogram);
+
+        //Profiles of the written images, one at a time
+        profiler = new RadialProfiler(oCorr, scale);
+        profiler.calculateOCorrProfile(oCorr);
+        profiler.calculateSCorrProfile(sCorr);
+        assertProfile(referenceProfile(oReference, correlationDims, scale), profiler.correlationData.oCorrelogram);
+        assertProfile(referenceProfile(sReference, correlationDims, scale), profiler.correlationData.sCorrelogram);
+
+        //The subtracted correlation derived from the cached spectra matches the mean-subtracted transform
+        ccFunctions.setAlgebraicSubtraction(true);
+        ccFunctions.generateSubtractedCCImage(img1, img2, mask, sCorr, new ArrayImgFactory<>(new FloatType()));
+        assertClose(sReference, values(sCorr));
+        assertClose(sReference, values(ccFunctions.getSubtractedCCView(img1, img2, mask)));
+        return ccFunctions;
+    }
+
+    //Correlation of the zero-extended images, the shift of each output voxel is its position minus outputDims/2
+    private static double[] referenceCorrelation(Img<FloatType> img1, Img<FloatType> img2, double maskVolume, long[] outputDims){
+        int nDims = img1.numDimensions();
+        long[] dims = img1.dimensionsAsLongArray();
+        double[] values1 = values(img1), values2 = values(img2);
+        double[] output = new double[(int) Intervals.numElements(outputDims)];
+        long[] shift = new long[nDims], position = new long[nDims];
+        for (int o = 0; o < output.length; o++) {
+            toPosition(o, outputDims, shift);
+            for (int d = 0; d < nDims; d++) {
+                shift[d] -= outputDims[d] / 2;
+            }
+            double sum = 0;
+            for (int i = 0; i < values2.length; i++) {
+                toPosition(i, dims, position);
+                boolean inside = true;
+                for (int d = 0; d < nDims; d++) {
+                    position[d] += shift[d];
+                    inside &= position[d] >= 0 && position[d] < dims[d];
+                }
+                if (inside)
+                    sum += values1[toIndex(position, dims)] * values2[i];
+            }
+            output[o] = sum / maskVolume;
+        }
+        return output;
+    }
+
+    //Mean of the values at each exact distance from the center, (dims-1)/2
+    private static TreeMap<Double, Double> referenceProfile(double[] values, long[] dims, double[] scale){
+        Map<Double, double[]> sums = new TreeMap<>();
+        long[] position = new long[dims.length];
+        for (int i = 0; i < values.length; i++) {
+            toPosition(i, dims, position);
+            double distanceSq = 0;
+            for (int d = 0; d < dims.length; d++) {
+                distanceSq += Math.pow((position[d] - ((dims[d] - 1.0) / 2)) * scale[d], 2);
+            }
+            double[] sum = sums.computeIfAbsent(Math.sqrt(distanceSq), k -> new double[2]);
+            sum[0] += values[i];
+            sum[1]++;
+        }
+        TreeMap<Double, Double> profile = new TreeMap<>();
+        sums.forEach((distance, sum) -> profile.put(distance, sum[0] / sum[1]));
+        return profile;
+    }
+
+    private static void assertProfile(TreeMap<Double, Double> reference, Correlogram profile){
+        assertEquals(reference.size(), profile.size());
+        double tolerance = TOLERANCE * maxAbs(reference.values().stream().mapToDouble(Double::doubleValue).toArray());
+        int i = 0;
+        for (Map.Entry<Double, Double> entry : reference.entrySet()) {
+            assertEquals(entry.getKey(), profile.getDistance(i), 1e-9);
+            assertEquals(entry.getValue(), profile.getValue(i), tolerance);
+            i++;
+        }
+    }
+
+    private static void assertClose(double[] reference, double[] actual){
+        assertArrayEquals(reference, actual, TOLERANCE * maxAbs(reference));
+    }
+
+    private static double maxAbs(double[] values){
+        double max = 0;
+        for (double value : values) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+
+    //Values in flat iteration order, the first dimension varies fastest
+    private static double[] values(RandomAccessibleInterval<FloatType> image){
+        double[] values = new double[(int) Views.iterable(image).size()];
+        int i = 0;
+        for (FloatType value : Views.flatIterable(image)) {
+            values[i++] = value.getRealDouble();
+        }
+        return values;
+    }
+
+    private static void toPosition(long index, long[] dims, long[] position){
+        for (int d = 0; d < dims.length; d++) {
+            position[d] = index % dims[d];
+            index /= dims[d];
+        }
+    }
+
+    private static int toIndex(long[] position, long[] dims){
+        long index = 0;
+        for (int d = dims.length - 1; d >= 0; d--) {
+            index = (index * dims[d]) + position[d];
+        }
+        return (int) index;
+    }
+}
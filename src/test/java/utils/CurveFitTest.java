@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Compares the fit chosen among the unaveraged and averaged candidates, which run at the same time, with trying
+ * them one after the other: the unaveraged fit if it is valid, otherwise the first valid fit in order of increasing
+ * averaging window.
+ */
+public class CurveFitTest {
+
+    @Test
+    public void validUnaveragedFit() {
+        assertEquals(0, checkOrder(correlogram(0.1, 0, 0.05, 1)));
+    }
+
+    //A narrow bump is only fit validly once the data is averaged with the largest window
+    @Test
+    public void narrowBump() {
+        assertEquals(5, checkOrder(correlogram(0.02, 0.3, 0.045, 0)));
+    }
+
+    //The first averaging fails and the later ones are all valid, the smallest valid window is kept
+    @Test
+    public void firstValidWindow() {
+        assertEquals(2, checkOrder(correlogram(0.1, 0.3, 0.05, 0)));
+    }
+
+    //Index of the candidate tried last one after the other, after checking that the concurrent fit chose it
+    private static int checkOrder(Correlogram correlogram) {
+        CorrelationData data = new CorrelationData(1);
+        double minScale = correlogram.getDistance(1) - correlogram.firstDistance();
+        double[] expected = data.fitCandidate(correlogram, null);
+        int index = 0;
+        if(expected == null || !data.isValidFit(expected, minScale)) {
+            for (double windowSize = minScale / 10; windowSize <= (minScale / 2); windowSize += minScale / 10) {
+                double[] candidate = data.fitCandidate(MovingAverage.averaged(correlogram, windowSize), null);
+                index++;
+                if(candidate == null)
+                    continue;
+                expected = candidate;
+                if(data.isValidFit(candidate, minScale))
+                    break;
+            }
+        }
+        assertTrue(data.isValidFit(expected, minScale));
+        assertArrayEquals(expected, data.CurveFit(correlogram), 0);
+        return index;
+    }
+
+    //Gaussian profile plus noise and a narrow bump, at distances that get closer like the voxel distances of an image
+    private static Correlogram correlogram(double height, double bump, double bumpWidth, int seed) {
+        Random random = new Random(seed);
+        int size = 400;
+        double[] distances = new double[size], values = new double[size];
+        long[] counts = new long[size];
+        for (int i = 0; i < size; i++) {
+            distances[i] = 0.05 * Math.sqrt(i);
+        }
+        double bumpDistance = distances[20];
+        for (int i = 0; i < size; i++) {
+            values[i] = height * Math.exp(-Math.pow(distances[i] / 0.4, 2) / 2) + 0.01 * random.nextGaussian()
+                    + bump * Math.exp(-Math.pow((distances[i] - bumpDistance) / bumpWidth, 2) / 2);
+            counts[i] = 1 + 4L * i;
+        }
+        return new Correlogram(distances, values, counts);
+    }
+}
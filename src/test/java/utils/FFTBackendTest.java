@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import pl.edu.icm.jlargearrays.ConcurrencyUtils;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Runs each FFT backend on the same input, in the spectrum layout of CrossCorrelationFunctions: the spectra must
+ * match, and each inverse transform must restore the input from either spectrum.
+ */
+public class FFTBackendTest {
+
+    //Relative to the largest input or spectrum value, the FFTs are single precision
+    private static final double TOLERANCE = 1e-5;
+
+    @Test
+    public void evenLines2D() {
+        checkBackends(new long[]{10, 7});
+    }
+
+    @Test
+    public void oddLines2D() {
+        checkBackends(new long[]{9, 8});
+    }
+
+    @Test
+    public void lines3D() {
+        checkBackends(new long[]{6, 7, 5});
+    }
+
+    private static void checkBackends(long[] dims) {
+        long[] padded = new long[dims.length], spectrumDims = new long[dims.length];
+        FFTMethods.dimensionsRealToComplexFast(new FinalDimensions(dims), padded, spectrumDims);
+        Random random = new Random(3);
+        Img<FloatType> input = ArrayImgs.floats(padded);
+        for (FloatType value : input) {
+            value.setReal(random.nextDouble());
+        }
+        ExecutorService service = ForkJoinPool.commonPool();
+        int jTransformsThreads = ConcurrencyUtils.getNumberOfThreads();
+
+        Img<ComplexFloatType> imgLib2Spectrum = ArrayImgs.complexFloats(spectrumDims), jTransformsSpectrum = ArrayImgs.complexFloats(spectrumDims);
+        new ImgLib2FFTBackend().realToComplex(input, imgLib2Spectrum, service);
+        new JTransformsFFTBackend().realToComplex(input, jTransformsSpectrum, service);
+        double[] expected = complexValues(imgLib2Spectrum);
+        assertArrayEquals(expected, complexValues(jTransformsSpectrum), TOLERANCE * maxAbs(expected));
+
+        //each inverse from its own spectrum and from the spectrum of the other backend
+        for (FFTBackend backend : FFTBackend.getBackends()) {
+            for (Img<ComplexFloatType> spectrum : new Img[]{imgLib2Spectrum, jTransformsSpectrum}) {
+                Img<ComplexFloatType> copy = spectrum.copy();
+                Img<FloatType> output = ArrayImgs.floats(padded);
+                backend.complexToReal(copy, output, service);
+                assertArrayEquals(realValues(input), realValues(output), TOLERANCE);
+            }
+        }
+        //the thread setting of JTransforms is global, it is left as it was
+        assertEquals(jTransformsThreads, ConcurrencyUtils.getNumberOfThreads());
+    }
+
+    private static double[] realValues(RandomAccessibleInterval<FloatType> image) {
+        double[] values = new double[(int) Views.iterable(image).size()];
+        int i = 0;
+        for (FloatType value : Views.flatIterable(image)) {
+            values[i++] = value.getRealDouble();
+        }
+        return values;
+    }
+
+    //Real and imaginary parts, interleaved
+    private static double[] complexValues(RandomAccessibleInterval<ComplexFloatType> spectrum) {
+        double[] values = new double[2 * (int) Views.iterable(spectrum).size()];
+        int i = 0;
+        for (ComplexFloatType value : Views.flatIterable(spectrum)) {
+            values[i++] = value.getRealDouble();
+            values[i++] = value.getImaginaryDouble();
+        }
+        return values;
+    }
+
+    private static double maxAbs(double[] values) {
+        double max = 0;
+        for (double value : values) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the values and analytic Jacobian of the fit model, whose buffers are reused by every evaluation, against
+ * the parametric functions and central finite differences.
+ */
+public class FitModelTest {
+
+    private static final double[] X = {0, 0.05, 0.2, 0.35, 0.5, 0.8, 1.3, 2.1};
+    private static final double[] WEIGHTS = {1, 4, 9, 2, 0.5, 1, 3, 7};
+    //Norm or mass, mean and sigma triplets, one and two Gaussians, with means below, at and above zero
+    private static final double[][] POINTS = {
+            {0.8, 0.3, 0.25},
+            {0.5, -0.1, 0.4},
+            {0.6, 0, 0.2, 0.2, 0.9, 0.35}
+    };
+
+    @Test
+    public void mirroredModel() {
+        checkModel(false);
+    }
+
+    @Test
+    public void truncatedModel() {
+        checkModel(true);
+    }
+
+    @Test
+    public void collapsedGaussian() {
+        double[] gradient = new nGaussian.Parametric().gradient(0.3, 0.8, 0.3, 0);
+        assertEquals(0, gradient[0], 0);
+        assertEquals(0, gradient[1], 0);
+        assertEquals(1, gradient[2], 0);
+        Pair<RealVector, RealMatrix> evaluation = model(false, 3).value(new ArrayRealVector(new double[]{0.8, 0.3, 0}));
+        for (int i = 0; i < X.length; i++) {
+            assertTrue(Double.isFinite(evaluation.getSecond().getEntry(i, 2)));
+        }
+    }
+
+    @Test
+    public void nonFiniteFitsAreInvalid() {
+        CorrelationData data = new CorrelationData(1);
+        assertTrue(data.isValidFit(new double[]{0.8, 0.3, 0.25}, 0.05));
+        assertFalse(data.isValidFit(new double[]{Double.NaN, 0.3, 0.25}, 0.05));
+        assertFalse(data.isValidFit(new double[]{0.8, Double.POSITIVE_INFINITY, 0.25}, 0.05));
+        assertFalse(data.isValidFit(new double[]{0.8, 0.3, Double.NaN}, 0.05));
+    }
+
+    private static void checkModel(boolean truncated) {
+        double[] sqrtWeights = sqrtWeights();
+        for (double[] point : POINTS) {
+            nGaussianCurveFitter.Model model = model(truncated, point.length);
+            //evaluated at another point first, so the buffers hold stale values
+            model.value(new ArrayRealVector(point).mapMultiply(1.5));
+            Pair<RealVector, RealMatrix> evaluation = model.value(new ArrayRealVector(point));
+            for (int i = 0; i < X.length; i++) {
+                double value = truncated ? new nGaussian.Truncated().value(X[i], point) : new nGaussian.Parametric().value(X[i], point);
+                assertEquals(value * sqrtWeights[i], evaluation.getFirst().getEntry(i), 1e-12);
+                for (int j = 0; j < point.length; j++) {
+                    double step = 1e-6 * Math.max(1, Math.abs(point[j]));
+                    double[] above = point.clone(), below = point.clone();
+                    above[j] += step;
+                    below[j] -= step;
+                    double derivative = (modelValue(truncated, X[i], above) - modelValue(truncated, X[i], below)) / (2 * step);
+                    assertEquals(derivative * sqrtWeights[i], evaluation.getSecond().getEntry(i, j), 1e-6 * Math.max(1, Math.abs(derivative)));
+                }
+            }
+        }
+    }
+
+    private static nGaussianCurveFitter.Model model(boolean truncated, int parameterCount) {
+        return new nGaussianCurveFitter.Model(X, sqrtWeights(), parameterCount, truncated);
+    }
+
+    private static double[] sqrtWeights() {
+        double[] sqrtWeights = new double[X.length];
+        for (int i = 0; i < X.length; i++) {
+            sqrtWeights[i] = Math.sqrt(WEIGHTS[i]);
+        }
+        return sqrtWeights;
+    }
+
+    private static double modelValue(boolean truncated, double x, double[] point) {
+        return truncated ? new nGaussian.Truncated().value(x, point) : new nGaussian.Parametric().value(x, point);
+    }
+}
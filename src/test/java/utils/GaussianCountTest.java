@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that CorrelationData.selectGaussianCount, as run by Abstract_CCC_gaussian, selects by AIC and BIC the number
+ * of Gaussians the correlogram was made of among the fits of 1 to 3 Gaussians, and reports it in its rows. The
+ * truncated model fits the zero-bounded correlograms as they are.
+ */
+public class GaussianCountTest {
+
+    private static final int MAX_COUNT = 3;
+
+    @Test
+    public void oneGaussian() {
+        checkSelection(correlogram(0.01, 0.8, 0.3, 0.25), 1);
+    }
+
+    @Test
+    public void twoGaussians() {
+        checkSelection(correlogram(0.01, 0.8, 0.3, 0.15, 0.5, 1.6, 0.3), 2);
+    }
+
+    //Without noise the residuals can vanish, the scores stay finite and the extra parameters are penalized
+    @Test
+    public void exactGaussian() {
+        checkSelection(correlogram(0, 0.8, 0.3, 0.25), 1);
+    }
+
+    //Two distances are too few to fit any number of Gaussians, nothing is selected and every row reports the failure
+    @Test
+    public void noValidFit() {
+        Correlogram tooShort = new Correlogram(new double[]{0, 0.05}, new double[]{1, 0.9}, new long[]{1, 4});
+        CorrelationData.GaussianCountSelection selection = CorrelationData.selectGaussianCount(profiles(tooShort), MAX_COUNT, false);
+        assertFalse(selection.hasSelection());
+        for (Map<String, Double> row : selection.getRows(0)) {
+            assertEquals(0.0, row.get("Selected"), 0);
+        }
+    }
+
+    private static void checkSelection(Correlogram correlogram, int expectedCount) {
+        for (boolean useBIC : new boolean[]{false, true}) {
+            CorrelationData.GaussianCountSelection selection = CorrelationData.selectGaussianCount(profiles(correlogram), MAX_COUNT, useBIC);
+            assertTrue(selection.hasSelection());
+            assertEquals(expectedCount, selection.selected.curveCount);
+
+            List<LinkedHashMap<String, Double>> rows = selection.getRows(0);
+            assertEquals(MAX_COUNT, rows.size());
+            for (int i = 0; i < MAX_COUNT; i++) {
+                CorrelationData candidate = selection.candidates.get(i);
+                assertEquals(i + 1, rows.get(i).get("Gaussians"), 0);
+                assertEquals(i + 1 == expectedCount ? 1.0 : 0.0, rows.get(i).get("Selected"), 0);
+                if (candidate.hasValidFit()) {
+                    assertTrue(Double.isFinite(candidate.getAIC()) && Double.isFinite(candidate.getBIC()));
+                    assertEquals(useBIC ? candidate.getBIC() : candidate.getAIC(), rows.get(i).get(selection.getCriterion()), 0);
+                }
+            }
+        }
+    }
+
+    private static CorrelationData profiles(Correlogram correlogram) {
+        CorrelationData profiles = new CorrelationData(1);
+        profiles.sCorrelogram = correlogram;
+        profiles.setFitModel(CorrelationData.TRUNCATED_FIT);
+        return profiles;
+    }
+
+    //Sum of Gaussians (height, mean and sigma triplets) plus noise, at image-like distances
+    private static Correlogram correlogram(double noise, double... gaussians) {
+        Random random = new Random(9);
+        int size = 400;
+        double[] distances = new double[size], values = new double[size];
+        long[] counts = new long[size];
+        for (int i = 0; i < size; i++) {
+            distances[i] = 0.05 * Math.sqrt(2 * i);
+            values[i] = new nGaussian(gaussians).value(distances[i]) + (noise * random.nextGaussian());
+            counts[i] = 1 + 4L * i;
+        }
+        return new Correlogram(distances, values, counts);
+    }
+}
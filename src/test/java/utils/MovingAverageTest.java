@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/** Compares the linear-time moving average with its original definition: each distance is replaced by the mean
+ * distance and mean value of the entries within [distance - range, distance + range), computed entry by entry, and
+ * entries with the same averaged distance are merged.
+ */
+public class MovingAverageTest {
+
+    //Windows inside the data, reaching past one or both ends, and covering every entry
+    private static final double[] RANGES = {0.01, 0.05, 0.1, 0.25, 0.7, 1.5, 10};
+
+    @Test
+    public void evenlySpaced() {
+        double[] distances = new double[30];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = 0.1 * i;
+        }
+        checkRanges(distances);
+    }
+
+    //Closer and closer distances, like the voxel distances of a 2D image
+    @Test
+    public void imageDistances() {
+        double[] distances = new double[200];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = 0.05 * Math.sqrt(i);
+        }
+        checkRanges(distances);
+    }
+
+    @Test
+    public void singleEntry() {
+        checkRanges(new double[]{0.3});
+    }
+
+    private static void checkRanges(double[] distances) {
+        Random random = new Random(11);
+        double[] values = new double[distances.length];
+        long[] counts = new long[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            values[i] = random.nextDouble() - 0.3;
+            counts[i] = 1 + random.nextInt(20);
+        }
+        Correlogram correlogram = new Correlogram(distances, values, counts);
+        for (double range : RANGES) {
+            SortedMap<Double, double[]> expected = referenceAverage(correlogram, range);
+            Correlogram actual = MovingAverage.averaged(correlogram, range);
+            assertEquals(expected.size(), actual.size());
+            int i = 0;
+            for (Map.Entry<Double, double[]> entry : expected.entrySet()) {
+                assertEquals(entry.getKey(), actual.getDistance(i), 1e-12);
+                assertEquals(entry.getValue()[0], actual.getValue(i), 1e-12);
+                assertEquals((long) entry.getValue()[1], actual.getCount(i));
+                i++;
+            }
+        }
+    }
+
+    //Mean distance and value, and total count, of the window of each entry, summed entry by entry
+    private static SortedMap<Double, double[]> referenceAverage(Correlogram correlogram, double range) {
+        SortedMap<Double, double[]> output = new TreeMap<>();
+        for (int i = 0; i < correlogram.size(); i++) {
+            double distanceSum = 0, valueSum = 0;
+            long count = 0;
+            int windowSize = 0;
+            for (int j = 0; j < correlogram.size(); j++) {
+                double distance = correlogram.getDistance(j);
+                if (distance >= correlogram.getDistance(i) - range && distance < correlogram.getDistance(i) + range) {
+                    distanceSum += distance;
+                    valueSum += correlogram.getValue(j);
+                    count += correlogram.getCount(j);
+                    windowSize++;
+                }
+            }
+            output.put(distanceSum / windowSize, new double[]{valueSum / windowSize, count});
+        }
+        return output;
+    }
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.apache.commons.math3.fitting.WeightedObservedPoints;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the analytic start point of the fit: each Gaussian at the highest remaining point, with its height as the
+ * norm and the sigma of its full width at half maximum, FWHM / (2 sqrt(2 ln 2)).
+ */
+public class ParameterGuesserTest {
+
+    //Spacing of the samples, the peak is found to this precision
+    private static final double STEP = 0.01;
+
+    @Test
+    public void singleGaussian() {
+        double[] guess = guess(1, 0, 3, 1.2, 1.4, 0.3);
+        assertGaussian(guess, 0, 1.2, 1.4, 0.3);
+    }
+
+    //Half maximum only reached on the right of the peak, the width is twice the right half width
+    @Test
+    public void peakAtTheStart() {
+        double[] guess = guess(1, 0, 2, 0.9, 0, 0.25);
+        assertGaussian(guess, 0, 0.9, 0, 0.25);
+    }
+
+    //Highest Gaussian first, the second is guessed once the first is subtracted
+    @Test
+    public void separatedGaussians() {
+        double[] guess = guess(2, 0, 6, 1.0, 1.5, 0.25, 0.6, 4.0, 0.4);
+        assertGaussian(guess, 0, 1.0, 1.5, 0.25);
+        assertGaussian(guess, 1, 0.6, 4.0, 0.4);
+    }
+
+    //Half maximum reached on neither side, the width falls back to the spread of the positive values
+    @Test
+    public void noHalfMaximum() {
+        double[] guess = guess(1, 0, 0.5, 1.0, 0.25, 2.0);
+        assertTrue(guess[2] > 0 && Double.isFinite(guess[2]));
+        assertEquals(0.25, guess[1], STEP);
+    }
+
+    //Guess of count Gaussians from samples of the Gaussians (height, mean and sigma triplets) on [from, to]
+    private static double[] guess(int count, double from, double to, double... gaussians) {
+        nGaussian function = new nGaussian(gaussians);
+        WeightedObservedPoints points = new WeightedObservedPoints();
+        for (double x = from; x <= to; x += STEP) {
+            points.add(x, function.value(x));
+        }
+        return new nGaussianCurveFitter.ParameterGuesser(points.toList(), count).guess();
+    }
+
+    private static void assertGaussian(double[] guess, int index, double height, double mean, double sigma) {
+        assertEquals(height, guess[3 * index], 0.01 * height);
+        assertEquals(mean, guess[(3 * index) + 1], STEP);
+        assertEquals(sigma, guess[(3 * index) + 2], 0.03 * sigma);
+    }
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks that the profiler rejects bins that can't group the distances, instead of silently keeping the exact shells,
+ * and that the minimum radius keeps enough distances to fit the Gaussians, while a shorter correlogram fails the fit
+ * with the error values.
+ */
+public class RadialProfilerTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBinWidth() throws Exception {
+        profiler().setBinning(RadialProfiler.FIXED_WIDTH_BINNING, -0.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroLogGrowth() throws Exception {
+        profiler().setBinning(RadialProfiler.LOG_BINNING, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void undefinedBinWidth() throws Exception {
+        profiler().setBinning(RadialProfiler.FIXED_WIDTH_BINNING, Double.NaN);
+    }
+
+    //the width is not used by the exact shells
+    @Test
+    public void exactShellsIgnoreWidth() throws Exception {
+        profiler().setBinning(RadialProfiler.EXACT_BINNING, 0);
+    }
+
+    @Test
+    public void minimumRadiusFixedWidth() throws Exception {
+        checkMinimumRadius(RadialProfiler.FIXED_WIDTH_BINNING, 0.35);
+    }
+
+    @Test
+    public void minimumRadiusLogSpaced() throws Exception {
+        checkMinimumRadius(RadialProfiler.LOG_BINNING, 0.5);
+    }
+
+    @Test
+    public void tooFewDistances() throws Exception {
+        RadialProfiler profiler = new RadialProfiler(ArrayImgs.floats(41, 41), new double[]{0.1, 0.1}, 2);
+        profiler.setMaxRadius(0.15);
+        profiler.calculateSCorrProfile(peak());
+        try {
+            profiler.correlationData.fitGaussianCurve();
+            fail("The fit of " + profiler.correlationData.sCorrelogram.size() + " distances should have failed");
+        } catch (IllegalStateException expected) {
+            assertFalse(profiler.correlationData.hasValidFit());
+        }
+    }
+
+    private static void checkMinimumRadius(String binning, double binWidth) throws Exception {
+        RadialProfiler profiler = new RadialProfiler(ArrayImgs.floats(41, 41), new double[]{0.1, 0.1}, 2);
+        profiler.setBinning(binning, binWidth);
+        profiler.setMaxRadius(profiler.getMinimumFitRadius());
+        profiler.calculateSCorrProfile(peak());
+        assertTrue(profiler.correlationData.sCorrelogram.size() >= 6);
+    }
+
+    //Gaussian peak at the center of a 41 x 41 correlation
+    private static Img<FloatType> peak() {
+        Img<FloatType> img = ArrayImgs.floats(41, 41);
+        Cursor<FloatType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            double r2 = Math.pow(cursor.getDoublePosition(0) - 20, 2) + Math.pow(cursor.getDoublePosition(1) - 20, 2);
+            cursor.get().setReal(Math.exp(-r2 / 50));
+        }
+        return img;
+    }
+
+    private static RadialProfiler profiler() throws Exception {
+        return new RadialProfiler(ArrayImgs.floats(9, 9), new double[]{1, 1});
+    }
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.iterator.IntervalIterator;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Compares the tabulated shells with the shells looked up on the fly by squared distance, on both sides of the
+ * number of offset combinations where the index stops tabulating them.
+ */
+public class ShellIndexTest {
+
+    @Test
+    public void shells2D() {
+        checkBoundary(new long[]{13, 10}, new double[]{0.2, 0.2});
+    }
+
+    @Test
+    public void anisotropicShells3D() {
+        checkBoundary(new long[]{12, 9, 5}, new double[]{0.1, 0.1, 0.3});
+    }
+
+    //Isotropic, so many combinations share a squared distance (e.g. offsets 3, 4 and 5, 0) that the hash table merges
+    @Test
+    public void mergedSquaredDistances2D() {
+        checkBoundary(new long[]{31, 31}, new double[]{0.5, 0.5});
+    }
+
+    private static void checkBoundary(long[] dims, double[] scale){
+        long comboCount = 1;
+        for (long dim : dims) {
+            comboCount *= (dim - 1) / 2 + 1;
+        }
+        ShellIndex tabulated = new ShellIndex(new FinalDimensions(dims), scale, comboCount);
+        ShellIndex onTheFly = new ShellIndex(new FinalDimensions(dims), scale, comboCount - 1);
+        assertEquals(tabulated.getShellCount(), onTheFly.getShellCount());
+        long voxels = 0;
+        for (int shell = 0; shell < tabulated.getShellCount(); shell++) {
+            assertEquals(tabulated.getDistance(shell), onTheFly.getDistance(shell), 0);
+            assertEquals(tabulated.getCount(shell), onTheFly.getCount(shell));
+            voxels += tabulated.getCount(shell);
+        }
+        long[] counted = new long[tabulated.getShellCount()];
+        IntervalIterator positions = new IntervalIterator(dims);
+        while (positions.hasNext()) {
+            positions.fwd();
+            int shell = tabulated.getShell(positions);
+            assertEquals(shell, onTheFly.getShell(positions));
+            counted[shell]++;
+        }
+        for (int shell = 0; shell < counted.length; shell++) {
+            assertEquals(tabulated.getCount(shell), counted[shell]);
+        }
+        assertEquals(Intervals.numElements(dims), voxels);
+    }
+}
@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Compares the tiled correlations with the in-memory FFT, and both the in-memory and the tiled contribution images
+ * with their definition: each image times the other image convolved (Image 1) or correlated (Image 2) with the
+ * kernel, centered at kernel dims/2. The heap budgets split the images into several tiles, the last of which extend
+ * past the image, and the in-memory contributions read the zero padding of the FFTs at the image borders.
+ */
+public class TiledCorrelationTest {
+
+    //Relative to the largest reference value, the FFTs are single precision
+    private static final double TOLERANCE = 1e-4;
+
+    @Test
+    public void tiled2D() {
+        checkTiles(new long[]{37, 29}, 20000);
+    }
+
+    @Test
+    public void tiled3D() {
+        checkTiles(new long[]{17, 19, 6}, 200000);
+    }
+
+    private static void checkTiles(long[] dims, long heapBudget) {
+        double[] scale = new double[dims.length];
+        Arrays.fill(scale, 0.5);
+        double maxCorrelationDistance = 1.6;
+        long[] tile = new TiledCorrelation(ArrayImgs.floats(dims), scale, maxCorrelationDistance, heapBudget).getTileDimensions();
+        boolean uneven = false;
+        long tileCount = 1;
+        for (int d = 0; d < dims.length; d++) {
+            uneven |= dims[d] % tile[d] != 0;
+            tileCount *= (dims[d] + tile[d] - 1) / tile[d];
+        }
+        assertTrue(uneven && tileCount > 1);
+
+        Random random = new Random(7);
+        Img<FloatType> img1 = ArrayImgs.floats(dims), img2 = ArrayImgs.floats(dims), mask = ArrayImgs.floats(dims);
+        Cursor<FloatType> c1 = img1.cursor(), c2 = img2.cursor(), m = mask.cursor();
+        while (m.hasNext()) {
+            boolean inside = random.nextDouble() > 0.3;
+            m.next().setReal(inside ? 1 : 0);
+            c1.next().setReal(inside ? random.nextDouble() : 0);
+            c2.next().setReal(inside ? random.nextDouble() : 0);
+        }
+        ArrayImgFactory<FloatType> factory = new ArrayImgFactory<>(new FloatType());
+        CrossCorrelationFunctions<FloatType, FloatType> inMemory = new CrossCorrelationFunctions<>(img1, img2, mask, scale, maxCorrelationDistance, factory);
+        CrossCorrelationFunctions<FloatType, FloatType> tiled = new CrossCorrelationFunctions<>(img1, img2, mask, scale, maxCorrelationDistance, factory);
+        assertTrue(tiled.setOutOfCore(heapBudget));
+
+        long[] correlationDims = inMemory.getCorrelationDimensions();
+        Img<FloatType> expected = ArrayImgs.floats(correlationDims), actual = ArrayImgs.floats(correlationDims);
+        inMemory.calculateCC(expected);
+        tiled.calculateCC(actual);
+        assertClose(values(expected), values(actual));
+        inMemory.generateSubtractedCCImage(img1, img2, mask, expected, factory);
+        tiled.generateSubtractedCCImage(img1, img2, mask, actual, factory);
+        assertClose(values(expected), values(actual));
+
+        Img<FloatType> kernel = ArrayImgs.floats(correlationDims);
+        for (FloatType value : kernel) {
+            value.setReal(random.nextDouble());
+        }
+        double[] reference1 = referenceContribution(img1, img2, kernel, false);
+        double[] reference2 = referenceContribution(img2, img1, kernel, true);
+        for (CrossCorrelationFunctions<FloatType, FloatType> functions : Arrays.asList(inMemory, tiled)) {
+            Img<FloatType> contribution1 = ArrayImgs.floats(dims), contribution2 = ArrayImgs.floats(dims);
+            functions.calculateContributionImages(img1, img2, kernel, contribution1, contribution2);
+            assertClose(reference1, values(contribution1));
+            assertClose(reference2, values(contribution2));
+        }
+    }
+
+    //The image times the other image convolved (or correlated) with the kernel, zero outside the images
+    private static double[] referenceContribution(Img<FloatType> image, Img<FloatType> other, Img<FloatType> kernel, boolean correlate) {
+        int nDims = image.numDimensions();
+        double[] output = new double[(int) image.size()];
+        long[] position = new long[nDims], shift = new long[nDims], source = new long[nDims];
+        RandomAccess<FloatType> imageAccess = image.randomAccess(), otherAccess = other.randomAccess();
+        Cursor<FloatType> outputCursor = Views.flatIterable(image).localizingCursor();
+        for (int o = 0; outputCursor.hasNext(); o++) {
+            outputCursor.fwd();
+            outputCursor.localize(position);
+            double sum = 0;
+            Cursor<FloatType> kernelCursor = Views.flatIterable(kernel).localizingCursor();
+            while (kernelCursor.hasNext()) {
+                double weight = kernelCursor.next().getRealDouble();
+                kernelCursor.localize(shift);
+                boolean inside = true;
+                for (int d = 0; d < nDims; d++) {
+                    long offset = shift[d] - (kernel.dimension(d) / 2);
+                    source[d] = correlate ? position[d] + offset : position[d] - offset;
+                    inside &= source[d] >= 0 && source[d] < other.dimension(d);
+                }
+                if (inside) {
+                    otherAccess.setPosition(source);
+                    sum += otherAccess.get().getRealDouble() * weight;
+                }
+            }
+            imageAccess.setPosition(position);
+            output[o] = imageAccess.get().getRealDouble() * sum;
+        }
+        return output;
+    }
+
+    private static void assertClose(double[] reference, double[] actual) {
+        double max = 0;
+        for (double value : reference) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(reference, actual, TOLERANCE * max);
+    }
+
+    //Values in flat iteration order, the first dimension varies fastest
+    private static double[] values(RandomAccessibleInterval<FloatType> image) {
+        double[] values = new double[(int) Views.iterable(image).size()];
+        int i = 0;
+        for (FloatType value : Views.flatIterable(image)) {
+            values[i++] = value.getRealDouble();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Scijava plugin for spatial correlation
+ * %%
+ * Copyright (C) 2019 - 2025 Andrew McCall, University at Buffalo
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Checks the normalization of the zero-truncated Gaussian model, and that fitting it recovers Gaussians whose mean
+ * is below, at or near zero, where the data is cut off.
+ */
+public class TruncatedFitTest {
+
+    //Mass, mean and sigma triplets, with means below, at and above zero
+    private static final double[][] COMPONENTS = {{1.0, -0.2, 0.3}, {0.7, 0, 0.25}, {2.0, 0.4, 0.15}};
+
+    //Each component keeps its mass above zero, however far its mean is below zero
+    @Test
+    public void massAboveZero() {
+        nGaussian.Truncated truncated = new nGaussian.Truncated();
+        for (double[] component : COMPONENTS) {
+            double step = component[2] / 1000, integral = 0;
+            for (double x = step / 2; x < component[1] + (12 * component[2]); x += step) {
+                integral += truncated.value(x, component) * step;
+            }
+            assertEquals(component[0], integral, 1e-6 * component[0]);
+            assertEquals(0, truncated.value(-step, component), 0);
+        }
+    }
+
+    //Converting to Gaussians and back keeps the parameters, and the Gaussians have the same values above zero
+    @Test
+    public void gaussianConversion() {
+        nGaussian.Truncated truncated = new nGaussian.Truncated();
+        for (double[] component : COMPONENTS) {
+            double[] gaussian = nGaussian.Truncated.toGaussians(component);
+            assertArrayEquals(component, nGaussian.Truncated.toMasses(gaussian), 1e-12);
+            for (double x = 0; x < 2; x += 0.1) {
+                assertEquals(truncated.value(x, component), new nGaussian(gaussian).value(x), 1e-12);
+            }
+        }
+    }
+
+    //Peaked at the origin, the fitted mean is below zero and is kept
+    @Test
+    public void meanBelowZero() {
+        checkFit(1.0, -0.2, 0.3);
+    }
+
+    @Test
+    public void meanAtZero() {
+        checkFit(1.0, 0, 0.3);
+    }
+
+    @Test
+    public void meanNearZero() {
+        checkFit(0.6, 0.08, 0.25);
+    }
+
+    @Test
+    public void meanAwayFromZero() {
+        checkFit(0.8, 0.5, 0.2);
+    }
+
+    //Fit of a noisy correlogram of a Gaussian with the given height, mean and sigma
+    private static void checkFit(double height, double mean, double sigma) {
+        Random random = new Random(5);
+        int size = 300;
+        double[] distances = new double[size], values = new double[size];
+        long[] counts = new long[size];
+        for (int i = 0; i < size; i++) {
+            distances[i] = 0.05 * Math.sqrt(i);
+            values[i] = height * Math.exp(-Math.pow((distances[i] - mean) / sigma, 2) / 2) + (0.005 * random.nextGaussian());
+            counts[i] = 1 + 4L * i;
+        }
+        CorrelationData data = new CorrelationData(1);
+        data.sCorrelogram = new Correlogram(distances, values, counts);
+        data.setFitModel(CorrelationData.TRUNCATED_FIT);
+        data.fitGaussianCurve();
+        assertEquals(height, data.getGaussianNorm(0), 0.02 * height);
+        assertEquals(mean, data.getGaussianMean(0), 0.02);
+        assertEquals(sigma, data.getGaussianSD(0), 0.02 * sigma);
+    }
+}